@@ -19,9 +19,19 @@ public class BrokerLauncher {
         accountManager.addUser("admin", "admin");
         accountManager.addUser("user", "user");
 
+        // Opzioni: -tls per TLS, -mode <eventloop|platform|virtual> per la gestione delle connessioni.
+        boolean useTLS = false;
+        Broker.ConnectionMode connectionMode = Broker.ConnectionMode.EVENT_LOOP;
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equalsIgnoreCase("-tls"))
+                useTLS = true;
+            else if(args[i].equalsIgnoreCase("-mode") && i + 1 < args.length)
+                connectionMode = parseConnectionMode(args[++i]);
+        }
+
         // Nuovo Broker con uno specifico account manager.
         // Garantirà l'accesso a tutti i client, non solo a quelli con Account.
-        Broker broker = new Broker(accountManager);
+        Broker broker = new Broker(accountManager, connectionMode);
 
         // use TLS
         TLSProvider tlsProvider = new TLSProvider(brokerLauncher.getClass().getResource("server.jks"),
@@ -30,10 +40,8 @@ public class BrokerLauncher {
 
         // Server in ascolto di connessioni, su porta specifica
         // Porta 1883 è la porta di default per MQTT.
-        if(args.length > 0) {
-            if(args[0].equalsIgnoreCase("-tls")) {
-                broker.listenTLS(tlsProvider, 8883);
-            }
+        if(useTLS) {
+            broker.listenTLS(tlsProvider, 8883);
         } else {
             broker.listen(1883);
         }
@@ -44,5 +52,16 @@ public class BrokerLauncher {
         broker.waitEnd();
     }
 
+    private static Broker.ConnectionMode parseConnectionMode(String mode) {
+        switch (mode.toLowerCase()) {
+            case "platform":
+                return Broker.ConnectionMode.PLATFORM_THREAD;
+            case "virtual":
+                return Broker.ConnectionMode.VIRTUAL_THREAD;
+            default:
+                return Broker.ConnectionMode.EVENT_LOOP;
+        }
+    }
+
 
 }
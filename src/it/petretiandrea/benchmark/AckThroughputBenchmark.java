@@ -0,0 +1,70 @@
+package it.petretiandrea.benchmark;
+
+import it.petretiandrea.client.MQTTClient;
+import it.petretiandrea.common.Client;
+import it.petretiandrea.common.network.WriteBatch;
+import it.petretiandrea.core.ConnectionSettingsBuilder;
+import it.petretiandrea.core.Message;
+import it.petretiandrea.core.Qos;
+import it.petretiandrea.core.packet.Publish;
+import it.petretiandrea.server.Broker;
+import it.petretiandrea.server.security.AccountManager;
+import it.petretiandrea.utils.CustomLogger;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Measure the rate of Qos 1 publish acknowledged by the broker, for a burst of publish of a single client,
+ * with and without the write coalescing of the broker.
+ * Usage: AckThroughputBenchmark [eventloop|platform|virtual] [messages] [batch|nobatch]
+ */
+public class AckThroughputBenchmark {
+
+    private static final String TOPIC = "bench/telemetry";
+
+    public static void main(String[] args) throws Exception {
+        CustomLogger.LOGGER.setLevel(Level.OFF);
+
+        Broker.ConnectionMode mode = (args.length > 0) ? ForwardingLatencyBenchmark.parseMode(args[0]) : Broker.ConnectionMode.EVENT_LOOP;
+        int messages = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+        boolean batch = args.length <= 2 || !args[2].equalsIgnoreCase("nobatch");
+        int port = 20000 + (int) (Math.random() * 10000);
+
+        Broker broker = new Broker(new AccountManager(), mode);
+        WriteBatch writeBatch = new WriteBatch();
+        // without batch the counters are not updated, so are kept only for the report
+        if(batch)
+            broker.setWriteBatch(writeBatch);
+        broker.listen(port);
+
+        CountDownLatch done = new CountDownLatch(messages);
+        MQTTClient publisher = new MQTTClient(new ConnectionSettingsBuilder()
+                .setHostname("127.0.0.1")
+                .setPort(port)
+                .setClientId("bench-telemetry")
+                .setKeepAliveSeconds(60)
+                .setCleanSession(true)
+                .build());
+        publisher.setClientCallback(new ForwardingLatencyBenchmark.Callback() {
+            @Override
+            public void onDeliveryComplete(Client client, Publish publish) {
+                done.countDown();
+            }
+        });
+        if(!publisher.connect())
+            throw new IllegalStateException("Connection to broker failed");
+
+        long start = System.nanoTime();
+        for(int i = 0; i < messages; i++)
+            publisher.publish(new Message(TOPIC, "sample-" + i, Qos.QOS_1, false));
+        if(!done.await(60, TimeUnit.SECONDS))
+            System.out.println("Timeout, acknowledged: " + (messages - done.getCount()) + "/" + messages);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("mode=%s batch=%s messages=%d acks/s=%.0f %s%n",
+                mode, batch, messages, (messages - done.getCount()) / seconds, batch ? writeBatch : "");
+        System.exit(0);
+    }
+}
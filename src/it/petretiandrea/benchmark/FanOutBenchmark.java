@@ -0,0 +1,64 @@
+package it.petretiandrea.benchmark;
+
+import it.petretiandrea.common.QueueMQTT;
+import it.petretiandrea.common.SubscribeManager;
+import it.petretiandrea.core.Message;
+import it.petretiandrea.core.Qos;
+import it.petretiandrea.core.packet.Publish;
+import it.petretiandrea.core.packet.Subscribe;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Measure the delivery of a broadcast message, matched by all clients, on the routing thread
+ * and in parallel on the common pool. The delivery enqueues a copy of the publish with its message id
+ * in the queue of each client, as the broker does for a client connected.
+ * Usage: FanOutBenchmark [clients] [seconds]
+ */
+public class FanOutBenchmark {
+
+    private static final String TOPIC = "firmware/announce";
+
+    public static void main(String[] args) {
+        int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+        double seconds = (args.length > 1) ? Double.parseDouble(args[1]) : 2;
+
+        System.out.println("available processors: " + Runtime.getRuntime().availableProcessors()
+                + ", pool parallelism: " + ForkJoinPool.commonPool().getParallelism());
+        SubscribeManager subscribeManager = new SubscribeManager();
+        Map<String, QueueMQTT<Publish>> queues = new ConcurrentHashMap<>();
+        for(int i = 0; i < clients; i++) {
+            subscribeManager.subscribe("client-" + i, new Subscribe(TOPIC, Qos.QOS_1));
+            queues.put("client-" + i, new QueueMQTT<>());
+        }
+        Publish publish = new Publish(new Message(0, TOPIC, "v2.1", Qos.QOS_1, false, false)).share();
+
+        for(boolean parallel : new boolean[] { false, true }) {
+            subscribeManager.setParallelFanOut(parallel ? ForkJoinPool.commonPool() : null, 1);
+            // warmup
+            run(subscribeManager, queues, publish, seconds / 2);
+            long[] result = run(subscribeManager, queues, publish, seconds);
+            System.out.printf("%-10s clients=%d broadcast/s=%10.1f ms/broadcast=%8.3f%n",
+                    parallel ? "parallel" : "sequential", clients, result[0] / (result[1] / 1e9), result[1] / 1e6 / result[0]);
+        }
+    }
+
+    /**
+     * @return Broadcasts delivered and nanoseconds elapsed.
+     */
+    private static long[] run(SubscribeManager subscribeManager, Map<String, QueueMQTT<Publish>> queues,
+                              Publish publish, double seconds) {
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        long broadcasts = 0;
+        long now;
+        do {
+            subscribeManager.match(TOPIC, (clientID, subscribe) -> queues.get(clientID).add(publish.withMessageID(1)));
+            queues.values().forEach(QueueMQTT::clear);
+            broadcasts++;
+        } while ((now = System.nanoTime()) < deadline);
+        return new long[] { broadcasts, now - start };
+    }
+}
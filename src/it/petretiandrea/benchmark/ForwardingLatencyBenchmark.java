@@ -0,0 +1,135 @@
+package it.petretiandrea.benchmark;
+
+import it.petretiandrea.client.MQTTClient;
+import it.petretiandrea.common.Client;
+import it.petretiandrea.common.MQTTClientCallback;
+import it.petretiandrea.core.ConnectionSettingsBuilder;
+import it.petretiandrea.core.Message;
+import it.petretiandrea.core.Qos;
+import it.petretiandrea.core.packet.Publish;
+import it.petretiandrea.core.packet.Subscribe;
+import it.petretiandrea.core.packet.Unsubscribe;
+import it.petretiandrea.server.Broker;
+import it.petretiandrea.server.security.AccountManager;
+import it.petretiandrea.utils.CustomLogger;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+/**
+ * Measure the latency of a publish forwarded by the broker to an idle subscriber, on loopback.
+ * Usage: ForwardingLatencyBenchmark [eventloop|platform|virtual] [messages] [qos]
+ */
+public class ForwardingLatencyBenchmark {
+
+    private static final String TOPIC = "bench/latency";
+    private static final int WARMUP = 2000;
+
+    public static void main(String[] args) throws Exception {
+        CustomLogger.LOGGER.setLevel(Level.OFF);
+
+        Broker.ConnectionMode mode = (args.length > 0) ? parseMode(args[0]) : Broker.ConnectionMode.EVENT_LOOP;
+        int messages = (args.length > 1) ? Integer.parseInt(args[1]) : 20000;
+        Qos qos = (args.length > 2) ? Qos.fromInteger(Integer.parseInt(args[2])) : Qos.QOS_0;
+        int port = 20000 + (int) (Math.random() * 10000);
+
+        Broker broker = new Broker(new AccountManager(), mode);
+        broker.listen(port);
+
+        long[] latencies = new long[messages];
+        AtomicInteger received = new AtomicInteger(0);
+        CountDownLatch done = new CountDownLatch(1);
+        CountDownLatch subscribed = new CountDownLatch(1);
+
+        MQTTClient subscriber = newClient("bench-sub", port);
+        subscriber.setClientCallback(new Callback() {
+            @Override
+            public void onMessageArrived(Client client, Message message) {
+                long latency = System.nanoTime() - Long.parseLong(message.getMessage());
+                int index = received.getAndIncrement() - WARMUP;
+                if(index >= 0 && index < latencies.length)
+                    latencies[index] = latency;
+                if(index == latencies.length - 1)
+                    done.countDown();
+            }
+
+            @Override
+            public void onSubscribeComplete(Client client, Subscribe subscribe) {
+                subscribed.countDown();
+            }
+        });
+        MQTTClient publisher = newClient("bench-pub", port);
+        publisher.setClientCallback(new Callback());
+
+        if(!subscriber.connect() || !publisher.connect())
+            throw new IllegalStateException("Connection to broker failed");
+        subscriber.subscribe(TOPIC, qos);
+        subscribed.await(5, TimeUnit.SECONDS);
+
+        // one message at time, every 200us, so the subscriber is idle when the publish arrives.
+        for(int i = 0; i < WARMUP + messages; i++) {
+            publisher.publish(new Message(TOPIC, Long.toString(System.nanoTime()), qos, false));
+            long next = System.nanoTime() + 200_000;
+            while (System.nanoTime() < next) Thread.yield();
+        }
+
+        if(!done.await(30, TimeUnit.SECONDS))
+            System.out.println("Timeout, received: " + (received.get() - WARMUP) + "/" + messages);
+
+        long[] sorted = Arrays.copyOf(latencies, Math.max(0, Math.min(messages, received.get() - WARMUP)));
+        Arrays.sort(sorted);
+        System.out.printf("mode=%s qos=%d messages=%d p50=%.1fus p90=%.1fus p99=%.1fus max=%.1fus%n",
+                mode, qos.ordinal(), sorted.length,
+                percentile(sorted, 0.50), percentile(sorted, 0.90), percentile(sorted, 0.99), percentile(sorted, 1.0));
+        System.exit(0);
+    }
+
+    private static MQTTClient newClient(String clientID, int port) throws java.io.IOException {
+        return new MQTTClient(new ConnectionSettingsBuilder()
+                .setHostname("127.0.0.1")
+                .setPort(port)
+                .setClientId(clientID)
+                .setKeepAliveSeconds(60)
+                .setCleanSession(true)
+                .build());
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if(sorted.length == 0)
+            return 0;
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1000.0;
+    }
+
+    static Broker.ConnectionMode parseMode(String mode) {
+        switch (mode.toLowerCase()) {
+            case "platform":
+                return Broker.ConnectionMode.PLATFORM_THREAD;
+            case "virtual":
+                return Broker.ConnectionMode.VIRTUAL_THREAD;
+            default:
+                return Broker.ConnectionMode.EVENT_LOOP;
+        }
+    }
+
+    /**
+     * Callback that ignore all events.
+     */
+    static class Callback implements MQTTClientCallback {
+        @Override
+        public void onMessageArrived(Client client, Message message) { }
+        @Override
+        public void onDeliveryComplete(Client client, Publish publish) { }
+        @Override
+        public void onConnectionLost(Client client, Throwable ex) { }
+        @Override
+        public void onDisconnect(Client client) { }
+        @Override
+        public void onSubscribeComplete(Client client, Subscribe subscribe) { }
+        @Override
+        public void onUnsubscribeComplete(Client client, Unsubscribe unsubscribe) { }
+    }
+}
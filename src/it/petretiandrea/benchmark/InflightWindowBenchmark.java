@@ -0,0 +1,78 @@
+package it.petretiandrea.benchmark;
+
+import it.petretiandrea.common.QueueMQTT;
+import it.petretiandrea.common.session.InflightWindow;
+import it.petretiandrea.core.Message;
+import it.petretiandrea.core.Qos;
+import it.petretiandrea.core.packet.Publish;
+import it.petretiandrea.core.packet.base.MQTTPacket;
+
+import java.util.Collection;
+
+/**
+ * Measure the handling of the acks of a session with many Qos 1 publish in flight: each ack removes the oldest
+ * publish and a new publish is sent, so the number in flight is constant. The queue finds the publish with a scan,
+ * as the session did before, the window with the packet identifier.
+ * Usage: InflightWindowBenchmark [seconds]
+ */
+public class InflightWindowBenchmark {
+
+    public static void main(String[] args) {
+        double seconds = (args.length > 0) ? Double.parseDouble(args[0]) : 1;
+
+        for(int inflight : new int[] { 100, 10000 }) {
+            Publish[] publishes = new Publish[65536];
+            for(int i = 1; i < publishes.length; i++)
+                publishes[i] = new Publish(new Message(i, "bench/telemetry", "sample-" + i, Qos.QOS_1, false, false));
+            for(boolean indexed : new boolean[] { false, true }) {
+                // warmup
+                run(indexed, publishes, inflight, seconds / 2);
+                long[] result = run(indexed, publishes, inflight, seconds);
+                System.out.printf("%-6s inflight=%5d acks/s=%12.0f ns/ack=%10.1f%n",
+                        indexed ? "window" : "queue", inflight, result[0] / (result[1] / 1e9), (double) result[1] / result[0]);
+            }
+        }
+    }
+
+    /**
+     * @return Acks handled and nanoseconds elapsed.
+     */
+    private static long[] run(boolean indexed, Publish[] publishes, int inflight, double seconds) {
+        Collection<MQTTPacket> sendedNotAck = indexed ? new InflightWindow<>() : new QueueMQTT<>();
+        int next = 1;
+        for(int i = 0; i < inflight; i++)
+            sendedNotAck.add(publishes[next++]);
+        int oldest = 1;
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        long acks = 0;
+        long now;
+        do {
+            for(int i = 0; i < 100; i++) {
+                if(ack(indexed, sendedNotAck, oldest) == null)
+                    throw new IllegalStateException("Publish not found: " + oldest);
+                oldest = (oldest == 65535) ? 1 : oldest + 1;
+                sendedNotAck.add(publishes[next]);
+                next = (next == 65535) ? 1 : next + 1;
+            }
+            acks += 100;
+        } while ((now = System.nanoTime()) < deadline);
+        return new long[] { acks, now - start };
+    }
+
+    private static Publish ack(boolean indexed, Collection<MQTTPacket> sendedNotAck, int messageID) {
+        if(indexed) {
+            InflightWindow<MQTTPacket> window = (InflightWindow<MQTTPacket>) sendedNotAck;
+            MQTTPacket packet = window.get(messageID);
+            return (packet instanceof Publish && window.remove(messageID, packet)) ? (Publish) packet : null;
+        }
+        // the scan of the queue before the index: find the publish, then remove it
+        Publish publish = (Publish) sendedNotAck.stream()
+                .filter(packet -> (packet instanceof Publish) && ((Publish) packet).getMessage().getMessageID() == messageID)
+                .findFirst()
+                .orElse(null);
+        boolean removed = sendedNotAck
+                .removeIf(packet -> (packet instanceof Publish) && ((Publish) packet).getMessage().getMessageID() == messageID);
+        return removed ? publish : null;
+    }
+}
@@ -0,0 +1,120 @@
+package it.petretiandrea.benchmark;
+
+import it.petretiandrea.common.network.PacketEncoder;
+import it.petretiandrea.core.Message;
+import it.petretiandrea.core.Qos;
+import it.petretiandrea.core.packet.Publish;
+import it.petretiandrea.core.packet.base.MQTTPacket;
+import it.petretiandrea.utils.Utils;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measure the throughput (bytes/sec) and the bytes allocated for each packet, encoding a Publish
+ * with the old list of boxed bytes, with toByte() and with the pooled encoder, for payloads of 100 B, 4 KB and 256 KB.
+ * Usage: PacketEncoderBenchmark [seconds for each case]
+ */
+public class PacketEncoderBenchmark {
+
+    private static final int[] PAYLOAD_SIZES = { 100, 4 * 1024, 256 * 1024 };
+
+    /**
+     * Keep the result alive, so the encode is not removed by the JIT.
+     */
+    private static long sBlackhole;
+
+    public static void main(String[] args) throws Exception {
+        double seconds = (args.length > 0) ? Double.parseDouble(args[0]) : 2;
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        for(int size : PAYLOAD_SIZES) {
+            char[] content = new char[size];
+            Arrays.fill(content, 'x');
+            String topic = "bench/encoder/topic";
+            String message = new String(content);
+            Publish publish = new Publish(new Message(1, topic, message, Qos.QOS_1, false, false));
+
+            Encoder legacy = () -> legacyEncode(topic, message, 1).length;
+            Encoder toByte = () -> {
+                byte[] data = publish.toByte();
+                return data.length;
+            };
+            Encoder pooled = () -> {
+                ByteBuffer data = PacketEncoder.encode(publish);
+                int length = data.remaining();
+                PacketEncoder.release(data);
+                return length;
+            };
+
+            // warmup
+            run(legacy, seconds / 2, threadBean);
+            run(toByte, seconds / 2, threadBean);
+            run(pooled, seconds / 2, threadBean);
+
+            print("legacy", size, run(legacy, seconds, threadBean));
+            print("toByte", size, run(toByte, seconds, threadBean));
+            print("pooled", size, run(pooled, seconds, threadBean));
+        }
+        System.out.println(sBlackhole == 42 ? "" : "done");
+    }
+
+    /**
+     * @return Packets encoded, bytes encoded, bytes allocated and nanoseconds elapsed.
+     */
+    private static long[] run(Encoder encoder, double seconds, com.sun.management.ThreadMXBean threadBean) throws Exception {
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        long packets = 0;
+        long bytes = 0;
+        long allocatedStart = allocatedBytes(threadBean);
+        long start = System.nanoTime();
+        long now;
+        do {
+            for(int i = 0; i < 64; i++) {
+                bytes += encoder.encode();
+                packets++;
+            }
+        } while ((now = System.nanoTime()) < deadline);
+        long allocated = allocatedBytes(threadBean) - allocatedStart;
+        sBlackhole += bytes;
+        return new long[] { packets, bytes, allocated, now - start };
+    }
+
+    /**
+     * @return Bytes allocated by the live threads: the benchmark runs alone, on the main thread.
+     */
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threadBean) {
+        long total = 0;
+        for(long allocated : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds()))
+            total += Math.max(0, allocated);
+        return total;
+    }
+
+    private static void print(String name, int size, long[] result) {
+        double seconds = result[3] / 1e9;
+        System.out.printf("%-7s payload=%7d packets/s=%12.0f MB/s=%9.1f allocated/packet=%10.1f B%n",
+                name, size, result[0] / seconds, result[1] / seconds / (1024 * 1024), (double) result[2] / result[0]);
+    }
+
+    /**
+     * Encode of Publish with a list of boxed bytes, as done before the encoder API.
+     */
+    private static byte[] legacyEncode(String topic, String message, int messageID) throws Exception {
+        List<Byte> variableAndPayload = new ArrayList<>();
+        Utils.AppendString(variableAndPayload, topic);
+        variableAndPayload.add((byte) (messageID >> 8));
+        variableAndPayload.add((byte) (messageID & 0xFF));
+        Utils.AppendBytes(variableAndPayload, message.getBytes(Utils.CHARSET));
+        return Utils.Join(
+                Utils.GenerateFixedHeader(MQTTPacket.Type.PUBLISH, variableAndPayload.size(), false, Qos.QOS_1.ordinal(), false),
+                Utils.ToPrimitive(variableAndPayload)
+        );
+    }
+
+    private interface Encoder {
+        int encode() throws Exception;
+    }
+}
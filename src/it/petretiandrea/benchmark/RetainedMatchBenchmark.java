@@ -0,0 +1,82 @@
+package it.petretiandrea.benchmark;
+
+import it.petretiandrea.common.RetainedMessageStore;
+import it.petretiandrea.common.TopicMatcher;
+import it.petretiandrea.core.Message;
+import it.petretiandrea.core.Qos;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measure the retained messages found for a new subscription, with a retained state for each device:
+ * the scan of the list of all retained messages, against the match on the retained store.
+ * The subscriptions are to the topics of a single device, with and without wildcards.
+ * Usage: RetainedMatchBenchmark [devices] [topics for device] [seconds]
+ */
+public class RetainedMatchBenchmark {
+
+    private static long sBlackhole;
+
+    public static void main(String[] args) {
+        int devices = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int topics = (args.length > 1) ? Integer.parseInt(args[1]) : 4;
+        double seconds = (args.length > 2) ? Double.parseDouble(args[2]) : 2;
+
+        List<Message> list = new ArrayList<>();
+        RetainedMessageStore store = new RetainedMessageStore();
+        for(int i = 0; i < devices; i++) {
+            for(int j = 0; j < topics; j++) {
+                Message message = new Message("dev/" + i + "/state/" + j, "{}", Qos.QOS_1, true);
+                list.add(message);
+                store.put(message);
+            }
+        }
+        Random random = new Random(42);
+        String[] filters = new String[1024];
+        for(int i = 0; i < filters.length; i++) {
+            int device = random.nextInt(devices);
+            filters[i] = (i % 2 == 0) ? "dev/" + device + "/#" : "dev/" + device + "/state/" + random.nextInt(topics);
+        }
+
+        Matcher scan = filter -> (int) list.stream().filter(message -> TopicMatcher.matchTopic(filter, message.getTopic())).count();
+        Matcher tree = filter -> {
+            int[] matches = new int[1];
+            store.match(filter, message -> matches[0]++);
+            return matches[0];
+        };
+
+        // warmup
+        run(scan, filters, seconds / 2);
+        run(tree, filters, seconds / 2);
+
+        print("scan", store.size(), run(scan, filters, seconds));
+        print("tree", store.size(), run(tree, filters, seconds));
+        System.out.println(sBlackhole == 42 ? "" : "done");
+    }
+
+    /**
+     * @return Subscriptions matched and nanoseconds elapsed.
+     */
+    private static long[] run(Matcher matcher, String[] filters, double seconds) {
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        long subscriptions = 0;
+        long now;
+        do {
+            sBlackhole += matcher.match(filters[(int) (subscriptions++ & (filters.length - 1))]);
+        } while ((now = System.nanoTime()) < deadline);
+        return new long[] { subscriptions, now - start };
+    }
+
+    private static void print(String name, int retained, long[] result) {
+        double seconds = result[1] / 1e9;
+        System.out.printf("%-6s retained=%d subscribe/s=%12.0f us/subscribe=%10.2f%n",
+                name, retained, result[0] / seconds, result[1] / 1000.0 / result[0]);
+    }
+
+    private interface Matcher {
+        int match(String filter);
+    }
+}
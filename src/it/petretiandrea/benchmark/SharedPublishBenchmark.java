@@ -0,0 +1,95 @@
+package it.petretiandrea.benchmark;
+
+import it.petretiandrea.common.network.PacketEncoder;
+import it.petretiandrea.core.Message;
+import it.petretiandrea.core.Qos;
+import it.petretiandrea.core.packet.Publish;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Measure the cost of the fan out of a publish to many subscribers: a packet encoded for each subscriber,
+ * against a packet encoded once and copied for each subscriber with its message id, and against the frames
+ * of a gathering write, where only the head with the message id is written for each subscriber
+ * and the payload is shared.
+ * Usage: SharedPublishBenchmark [subscribers] [payload bytes] [rounds]
+ */
+public class SharedPublishBenchmark {
+
+    private static final int PER_SUBSCRIBER = 0;
+    private static final int SHARED_COPY = 1;
+    private static final int SHARED_FRAME = 2;
+
+    private static long sBlackhole;
+
+    public static void main(String[] args) {
+        int subscribers = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+        int payload = (args.length > 1) ? Integer.parseInt(args[1]) : 1024;
+        int rounds = (args.length > 2) ? Integer.parseInt(args[2]) : 200;
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        char[] content = new char[payload];
+        Arrays.fill(content, 'x');
+        Message message = new Message(1, "bench/fanout/topic", new String(content), Qos.QOS_1, false, false);
+
+        // warmup
+        for(int mode = 0; mode < 3; mode++)
+            run(message, subscribers, rounds / 4, mode, threadBean);
+
+        long[] perSubscriber = run(message, subscribers, rounds, PER_SUBSCRIBER, threadBean);
+        long[] shared = run(message, subscribers, rounds, SHARED_COPY, threadBean);
+        long[] frames = run(message, subscribers, rounds, SHARED_FRAME, threadBean);
+        print("encode per subscriber", perSubscriber, subscribers, rounds);
+        print("encode once, shared", shared, subscribers, rounds);
+        print("shared payload frame", frames, subscribers, rounds);
+        System.out.println(sBlackhole == 42 ? "" : "done");
+    }
+
+    /**
+     * @return Nanoseconds elapsed and bytes allocated.
+     */
+    private static long[] run(Message message, int subscribers, int rounds, int mode, com.sun.management.ThreadMXBean threadBean) {
+        long allocatedStart = allocatedBytes(threadBean);
+        long start = System.nanoTime();
+        for(int round = 0; round < rounds; round++) {
+            Publish shared = (mode != PER_SUBSCRIBER) ? PacketEncoder.share(new Publish(message)) : null;
+            for(int i = 0; i < subscribers; i++) {
+                int messageID = (i % 65535) + 1;
+                Publish publish = (mode != PER_SUBSCRIBER) ? shared.retain().withMessageID(messageID)
+                        : new Publish(new Message(messageID, message.getTopic(), message.getMessage(), message.getQos(), false, false));
+                // what the transport does for each subscriber
+                if(mode == SHARED_FRAME) {
+                    PacketEncoder.Frame frame = PacketEncoder.encodeFrame(publish);
+                    sBlackhole += frame.remaining();
+                    frame.release();
+                } else {
+                    ByteBuffer data = PacketEncoder.encode(publish);
+                    sBlackhole += data.get(data.limit() - 1);
+                    PacketEncoder.release(data);
+                }
+                publish.release();
+            }
+            if(shared != null)
+                shared.release();
+        }
+        return new long[] { System.nanoTime() - start, allocatedBytes(threadBean) - allocatedStart };
+    }
+
+    /**
+     * @return Bytes allocated by the live threads: the benchmark runs alone, on the main thread.
+     */
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threadBean) {
+        long total = 0;
+        for(long allocated : threadBean.getThreadAllocatedBytes(threadBean.getAllThreadIds()))
+            total += Math.max(0, allocated);
+        return total;
+    }
+
+    private static void print(String name, long[] result, int subscribers, int rounds) {
+        double deliveries = (double) subscribers * rounds;
+        System.out.printf("%-22s subscribers=%d ns/delivery=%8.1f allocated/delivery=%8.1f B%n",
+                name, subscribers, result[0] / deliveries, result[1] / deliveries);
+    }
+}
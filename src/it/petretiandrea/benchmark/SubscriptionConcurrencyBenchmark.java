@@ -0,0 +1,207 @@
+package it.petretiandrea.benchmark;
+
+import it.petretiandrea.common.SubscribeManager;
+import it.petretiandrea.core.Qos;
+import it.petretiandrea.core.packet.Subscribe;
+import it.petretiandrea.core.packet.Unsubscribe;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measure the throughput of the subscription index with many threads, for a mix of match (publish)
+ * and subscribe/unsubscribe, with the lock free match and with a global lock around each operation
+ * (as the synchronized map used before).
+ * The broadcast case subscribes many clients to one topic, then a writer resubscribes them while the readers
+ * match the topic, as when the subscribers of a broadcast topic reconnect.
+ * Usage: SubscriptionConcurrencyBenchmark [clients] [seconds for each case] [max threads] [broadcast subscribers]
+ */
+public class SubscriptionConcurrencyBenchmark {
+
+    private static final int[] WRITE_PERCENTS = { 0, 1, 10, 50 };
+
+    private static final int FILTERS = 10;
+
+    private static final String BROADCAST_TOPIC = "firmware/announce";
+
+    public static void main(String[] args) throws Exception {
+        int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 30000;
+        double seconds = (args.length > 1) ? Double.parseDouble(args[1]) : 1;
+        int maxThreads = (args.length > 2) ? Integer.parseInt(args[2]) : Math.max(4, Runtime.getRuntime().availableProcessors());
+        int broadcastSubscribers = (args.length > 3) ? Integer.parseInt(args[3]) : 50000;
+
+        System.out.println("available processors: " + Runtime.getRuntime().availableProcessors());
+        // the writes resubscribe, so the same subscriptions are used by all cases
+        SubscribeManager subscribeManager = populate(clients);
+        for(boolean locked : new boolean[] { false, true }) {
+            for(int writePercent : WRITE_PERCENTS) {
+                for(int threads = 1; threads <= maxThreads; threads *= 2) {
+                    // warmup
+                    run(subscribeManager, clients, threads, writePercent, locked, seconds / 2);
+                    double opsPerSecond = run(subscribeManager, clients, threads, writePercent, locked, seconds);
+                    System.out.printf("%-9s writes=%2d%% threads=%2d ops/s=%12.0f%n",
+                            locked ? "locked" : "lock-free", writePercent, threads, opsPerSecond);
+                }
+            }
+        }
+        broadcast(broadcastSubscribers, seconds, maxThreads);
+    }
+
+    /**
+     * Subscribe many clients to one topic, then resubscribe them on a writer thread while the readers match the topic.
+     */
+    private static void broadcast(int subscribers, double seconds, int maxThreads) throws InterruptedException {
+        SubscribeManager subscribeManager = new SubscribeManager();
+        long start = System.nanoTime();
+        for(int i = 0; i < subscribers; i++)
+            subscribeManager.subscribe("client-" + i, new Subscribe(BROADCAST_TOPIC, Qos.QOS_1));
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        System.out.printf("broadcast subscribers=%d subscribe all: %.3f s, subscribes/s=%.0f%n",
+                subscribers, elapsed, subscribers / elapsed);
+        for(boolean locked : new boolean[] { false, true }) {
+            for(int readers = 1; readers <= maxThreads; readers *= 2) {
+                // warmup
+                broadcast(subscribeManager, subscribers, readers, locked, seconds / 2);
+                double[] result = broadcast(subscribeManager, subscribers, readers, locked, seconds);
+                System.out.printf("%-9s broadcast readers=%2d writes/s=%10.0f matches/s=%8.0f deliveries/s=%12.0f%n",
+                        locked ? "locked" : "lock-free", readers, result[0], result[1], result[1] * subscribers);
+            }
+        }
+    }
+
+    /**
+     * @return Resubscribes for second of the writer, and matches for second of all readers.
+     */
+    private static double[] broadcast(SubscribeManager subscribeManager, int subscribers, int readers,
+                                      boolean locked, double seconds) throws InterruptedException {
+        LongAdder writes = new LongAdder();
+        LongAdder matches = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[readers + 1];
+        long duration = (long) (seconds * 1e9);
+        Object lock = new Object();
+        for(int t = 0; t < workers.length; t++) {
+            boolean writer = (t == 0);
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int[] deliveries = new int[1];
+                long count = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long deadline = System.nanoTime() + duration;
+                while (System.nanoTime() < deadline) {
+                    if(writer) {
+                        String clientID = "client-" + random.nextInt(subscribers);
+                        if(locked) {
+                            synchronized (lock) {
+                                resubscribe(subscribeManager, clientID, BROADCAST_TOPIC);
+                            }
+                        } else {
+                            resubscribe(subscribeManager, clientID, BROADCAST_TOPIC);
+                        }
+                    } else if(locked) {
+                        synchronized (lock) {
+                            subscribeManager.match(BROADCAST_TOPIC, (clientID, subscribe) -> deliveries[0]++);
+                        }
+                    } else {
+                        subscribeManager.match(BROADCAST_TOPIC, (clientID, subscribe) -> deliveries[0]++);
+                    }
+                    count++;
+                }
+                (writer ? writes : matches).add(count);
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for(Thread worker : workers)
+            worker.join();
+        double elapsed = (System.nanoTime() - begin) / 1e9;
+        return new double[] { writes.sum() / elapsed, matches.sum() / elapsed };
+    }
+
+    private static SubscribeManager populate(int clients) {
+        SubscribeManager subscribeManager = new SubscribeManager();
+        for(int i = 0; i < clients; i++)
+            for(int j = 0; j < FILTERS; j++)
+                subscribeManager.subscribe("client-" + i, new Subscribe(filter(i, j), Qos.QOS_1));
+        return subscribeManager;
+    }
+
+    private static String filter(int client, int index) {
+        switch (index) {
+            case 0:
+                return "dev/" + client + "/#";
+            case 1:
+                return "+/" + client + "/+";
+            default:
+                return "dev/" + client + "/" + index;
+        }
+    }
+
+    /**
+     * @return Operations for second, of all threads.
+     */
+    private static double run(SubscribeManager subscribeManager, int clients, int threads, int writePercent,
+                              boolean locked, double seconds) throws InterruptedException {
+        LongAdder operations = new LongAdder();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threads];
+        long duration = (long) (seconds * 1e9);
+        Object lock = new Object();
+        for(int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int[] matches = new int[1];
+                long count = 0;
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long deadline = System.nanoTime() + duration;
+                while (System.nanoTime() < deadline) {
+                    int client = random.nextInt(clients);
+                    if(random.nextInt(100) < writePercent) {
+                        // resubscribe a filter, so the number of subscriptions is stable
+                        String clientID = "client-" + client;
+                        String filter = filter(client, random.nextInt(FILTERS));
+                        if(locked) {
+                            synchronized (lock) {
+                                resubscribe(subscribeManager, clientID, filter);
+                            }
+                        } else {
+                            resubscribe(subscribeManager, clientID, filter);
+                        }
+                    } else {
+                        String topic = "dev/" + client + "/" + random.nextInt(FILTERS);
+                        if(locked) {
+                            synchronized (lock) {
+                                subscribeManager.match(topic, (clientID, subscribe) -> matches[0]++);
+                            }
+                        } else {
+                            subscribeManager.match(topic, (clientID, subscribe) -> matches[0]++);
+                        }
+                    }
+                    count++;
+                }
+                operations.add(count);
+            });
+            workers[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for(Thread worker : workers)
+            worker.join();
+        return operations.sum() / ((System.nanoTime() - begin) / 1e9);
+    }
+
+    private static void resubscribe(SubscribeManager subscribeManager, String clientID, String filter) {
+        subscribeManager.unsubscribe(clientID, new Unsubscribe(filter));
+        subscribeManager.subscribe(clientID, new Subscribe(filter, Qos.QOS_1));
+    }
+}
@@ -0,0 +1,116 @@
+package it.petretiandrea.benchmark;
+
+import it.petretiandrea.common.SubscribeManager;
+import it.petretiandrea.common.TopicMatcher;
+import it.petretiandrea.core.Qos;
+import it.petretiandrea.core.packet.Subscribe;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measure the routing of a publish, with many clients and a few subscriptions for each client:
+ * the scan of all subscriptions of all clients, against the match on the subscription tree, without and with
+ * the cache of the topics matched. The last case publishes only to topics without subscribers.
+ * Usage: SubscriptionMatchBenchmark [clients] [filters for client] [seconds]
+ */
+public class SubscriptionMatchBenchmark {
+
+    private static long sBlackhole;
+
+    public static void main(String[] args) {
+        int clients = (args.length > 0) ? Integer.parseInt(args[0]) : 30000;
+        int filters = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        double seconds = (args.length > 2) ? Double.parseDouble(args[2]) : 2;
+
+        SubscribeManager subscribeManager = new SubscribeManager(0);
+        SubscribeManager cachedManager = new SubscribeManager();
+        String[] clientIDs = new String[clients];
+        for(int i = 0; i < clients; i++) {
+            clientIDs[i] = "client-" + i;
+            for(int j = 0; j < filters; j++) {
+                subscribeManager.subscribe(clientIDs[i], new Subscribe(filter(i, j), Qos.QOS_1));
+                cachedManager.subscribe(clientIDs[i], new Subscribe(filter(i, j), Qos.QOS_1));
+            }
+        }
+        Random random = new Random(42);
+        String[] topics = new String[1024];
+        for(int i = 0; i < topics.length; i++)
+            topics[i] = "dev/" + random.nextInt(clients) + "/" + random.nextInt(filters);
+        String[] unsubscribed = new String[1024];
+        for(int i = 0; i < unsubscribed.length; i++)
+            unsubscribed[i] = "sensor/" + random.nextInt() + "/telemetry";
+
+        Router scan = topic -> {
+            int matches = 0;
+            for(String clientID : clientIDs) {
+                List<Subscribe> subscriptions = subscribeManager.getSubscriptions(clientID);
+                for(Subscribe subscribe : subscriptions)
+                    if(TopicMatcher.matchTopic(subscribe.getTopic(), topic))
+                        matches++;
+            }
+            return matches;
+        };
+        Router tree = topic -> {
+            int[] matches = new int[1];
+            subscribeManager.match(topic, (clientID, subscribe) -> matches[0]++);
+            return matches[0];
+        };
+        Router cached = topic -> {
+            int[] matches = new int[1];
+            cachedManager.match(topic, (clientID, subscribe) -> matches[0]++);
+            return matches[0];
+        };
+
+        // warmup
+        run(scan, topics, seconds / 2);
+        run(tree, topics, seconds / 2);
+        run(cached, topics, seconds / 2);
+        run(cached, unsubscribed, seconds / 2);
+
+        print("scan", clients, filters, run(scan, topics, seconds));
+        print("tree", clients, filters, run(tree, topics, seconds));
+        print("cache", clients, filters, run(cached, topics, seconds));
+        print("nosub", clients, filters, run(cached, unsubscribed, seconds));
+        System.out.println(cachedManager.getMatchCache());
+        System.out.println(sBlackhole == 42 ? "" : "done");
+    }
+
+    /**
+     * Filters of a device: its own topics, some with wildcards.
+     */
+    private static String filter(int client, int index) {
+        switch (index) {
+            case 0:
+                return "dev/" + client + "/#";
+            case 1:
+                return "dev/" + client + "/+";
+            default:
+                return "dev/" + client + "/" + index;
+        }
+    }
+
+    /**
+     * @return Publish routed and nanoseconds elapsed.
+     */
+    private static long[] run(Router router, String[] topics, double seconds) {
+        long deadline = System.nanoTime() + (long) (seconds * 1e9);
+        long start = System.nanoTime();
+        long publishes = 0;
+        long now;
+        do {
+            sBlackhole += router.route(topics[(int) (publishes++ & (topics.length - 1))]);
+        } while ((now = System.nanoTime()) < deadline);
+        return new long[] { publishes, now - start };
+    }
+
+    private static void print(String name, int clients, int filters, long[] result) {
+        double seconds = result[1] / 1e9;
+        System.out.printf("%-6s clients=%d filters/client=%d publish/s=%12.0f us/publish=%10.2f%n",
+                name, clients, filters, result[0] / seconds, result[1] / 1000.0 / result[0]);
+    }
+
+    private interface Router {
+        int route(String topic);
+    }
+}
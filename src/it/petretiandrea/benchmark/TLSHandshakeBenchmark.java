@@ -0,0 +1,120 @@
+package it.petretiandrea.benchmark;
+
+import it.petretiandrea.server.security.TLSProvider;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.File;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Measure the TLS handshakes per second, full and resumed, performed by SSLEngine in memory (without network).
+ * The server and the client use the contexts of TLSProvider, like the broker and MQTTClient.
+ * Usage: TLSHandshakeBenchmark [handshakes] [server keystore] [client keystore] [truststore] [password]
+ */
+public class TLSHandshakeBenchmark {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final String HOST = "broker.benchmark";
+    private static final int WARMUP = 200;
+
+    public static void main(String[] args) throws Exception {
+        int handshakes = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+        URL serverKeys = (args.length > 1) ? new File(args[1]).toURI().toURL() : TLSHandshakeBenchmark.class.getResource("/it/petretiandrea/server.jks");
+        URL clientKeys = (args.length > 2) ? new File(args[2]).toURI().toURL() : TLSHandshakeBenchmark.class.getResource("/it/petretiandrea/mqtt_client.jks");
+        URL trustStore = (args.length > 3) ? new File(args[3]).toURI().toURL() : TLSHandshakeBenchmark.class.getResource("/it/petretiandrea/cacert.jks");
+        String password = (args.length > 4) ? args[4] : "rc2018";
+
+        SSLContext server = new TLSProvider(serverKeys, trustStore, password).getSSLContext();
+        SSLContext client = new TLSProvider(clientKeys, trustStore, password).getSSLContext();
+
+        // full: a different peer port for each handshake, so the client never find a session to resume.
+        run(server, client, WARMUP, true);
+        double full = run(server, client, handshakes, true);
+
+        run(server, client, WARMUP, false);
+        double resumed = run(server, client, handshakes, false);
+
+        System.out.printf("handshakes=%d full=%.0f/s resumed=%.0f/s speedup=%.1fx%n",
+                handshakes, full, resumed, resumed / full);
+    }
+
+    /**
+     * @return Handshakes per second.
+     */
+    private static double run(SSLContext server, SSLContext client, int handshakes, boolean full) throws SSLException {
+        int resumedCount = 0;
+        byte[] firstId = null;
+        long start = System.nanoTime();
+        for(int i = 0; i < handshakes; i++) {
+            SSLEngine clientEngine = client.createSSLEngine(HOST, full ? i : 0);
+            clientEngine.setUseClientMode(true);
+            SSLEngine serverEngine = server.createSSLEngine();
+            serverEngine.setUseClientMode(false);
+            handshake(clientEngine, serverEngine);
+
+            byte[] id = clientEngine.getSession().getId();
+            if(firstId == null)
+                firstId = id;
+            else if(Arrays.equals(firstId, id))
+                resumedCount++;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if(handshakes > WARMUP)
+            System.out.printf("%s: %d handshakes, %d resumed, %.2fs%n", full ? "full" : "resumed", handshakes, resumedCount, seconds);
+        return handshakes / seconds;
+    }
+
+    /**
+     * Perform the handshake between two engines, exchanging the data in memory.
+     */
+    private static void handshake(SSLEngine client, SSLEngine server) throws SSLException {
+        int packetSize = client.getSession().getPacketBufferSize();
+        int appSize = client.getSession().getApplicationBufferSize();
+        ByteBuffer clientToServer = ByteBuffer.allocate(packetSize);
+        ByteBuffer serverToClient = ByteBuffer.allocate(packetSize);
+        ByteBuffer clientApp = ByteBuffer.allocate(appSize);
+        ByteBuffer serverApp = ByteBuffer.allocate(appSize);
+
+        client.beginHandshake();
+        server.beginHandshake();
+        while (!isDone(client) || !isDone(server)) {
+            step(client, serverToClient, clientToServer, clientApp);
+            step(server, clientToServer, serverToClient, serverApp);
+        }
+    }
+
+    private static void step(SSLEngine engine, ByteBuffer in, ByteBuffer out, ByteBuffer app) throws SSLException {
+        switch (engine.getHandshakeStatus()) {
+            case NEED_TASK:
+                Runnable task;
+                while ((task = engine.getDelegatedTask()) != null)
+                    task.run();
+                break;
+            case NEED_WRAP:
+                engine.wrap(EMPTY, out);
+                break;
+            case NEED_UNWRAP:
+                in.flip();
+                SSLEngineResult result;
+                do {
+                    result = engine.unwrap(in, app);
+                } while (result.getStatus() == SSLEngineResult.Status.OK
+                        && result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_UNWRAP
+                        && in.hasRemaining());
+                in.compact();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static boolean isDone(SSLEngine engine) {
+        SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+        return status == SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING || status == SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+}
@@ -8,6 +8,7 @@ import it.petretiandrea.common.session.ClientSession;
 import it.petretiandrea.core.ConnectionSettings;
 import it.petretiandrea.core.exception.MQTTProtocolException;
 import it.petretiandrea.core.packet.*;
+import it.petretiandrea.core.packet.base.MQTTPacket;
 
 import javax.net.ssl.SSLContext;
 import java.io.IOException;
@@ -47,13 +48,11 @@ public class MQTTClient extends Client {
     public void onSubAckReceive(SubAck subAck) {
         CustomLogger.LOGGER.info("Client: SubAck Received " + subAck);
         // check for subscribe not ack
-        getClientSession().getSendedNotAck().stream()
-                .filter(packet -> (packet instanceof Subscribe) && ((Subscribe)packet).getMessageID() == subAck.getMessageID())
-                .findFirst()
-                .ifPresent(packet -> {
-                    getClientSession().getSendedNotAck().remove(packet);
-                    if(getClientCallback() != null) getClientCallback().onSubscribeComplete(this, (Subscribe) packet);
-                });
+        MQTTPacket packet = getClientSession().getSendedNotAck().get(subAck.getMessageID());
+        if(packet instanceof Subscribe && getClientSession().getSendedNotAck().remove(subAck.getMessageID(), packet)) {
+            releasePacketID(subAck.getMessageID());
+            if(getClientCallback() != null) getClientCallback().onSubscribeComplete(this, (Subscribe) packet);
+        }
     }
 
     @Override
@@ -64,13 +63,11 @@ public class MQTTClient extends Client {
     @Override
     public void onUnsubAckReceive(UnsubAck unsubscribe) {
         CustomLogger.LOGGER.info("Client: Unsuback Received " + unsubscribe);
-        getClientSession().getSendedNotAck().stream()
-                .filter(packet -> (packet instanceof Unsubscribe) && ((Unsubscribe)packet).getMessageID() == unsubscribe.getMessageID())
-                .findFirst()
-                .ifPresent(packet -> {
-                    getClientSession().getSendedNotAck().remove(packet);
-                    if(getClientCallback() != null) getClientCallback().onUnsubscribeComplete(this, (Unsubscribe) packet);
-                });
+        MQTTPacket packet = getClientSession().getSendedNotAck().get(unsubscribe.getMessageID());
+        if(packet instanceof Unsubscribe && getClientSession().getSendedNotAck().remove(unsubscribe.getMessageID(), packet)) {
+            releasePacketID(unsubscribe.getMessageID());
+            if(getClientCallback() != null) getClientCallback().onUnsubscribeComplete(this, (Unsubscribe) packet);
+        }
     }
 
     @Override
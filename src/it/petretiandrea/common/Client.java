@@ -1,8 +1,11 @@
 package it.petretiandrea.common;
 
 import it.petretiandrea.utils.CustomLogger;
+import it.petretiandrea.utils.ThreadFactories;
 import it.petretiandrea.common.network.Transport;
+import it.petretiandrea.common.network.TransportNIO;
 import it.petretiandrea.common.session.ClientSession;
+import it.petretiandrea.common.session.PacketIDAllocator;
 import it.petretiandrea.core.*;
 import it.petretiandrea.core.exception.MQTTParseException;
 import it.petretiandrea.core.exception.MQTTProtocolException;
@@ -12,14 +15,23 @@ import it.petretiandrea.core.packet.base.MQTTPacket;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.util.function.Predicate;
 
 public abstract class Client implements PacketDispatcher.IPacketReceiver {
 
-    private static final int SOCKET_IO_TIMEOUT = (int) (0.5 * 1000);
+    /**
+     * Factory of loop and writer threads, for blocking transports started without a specific factory.
+     */
+    private static final ThreadFactory LOOP_THREADS = ThreadFactories.platform("client-loop");
     /**
      * Transport Layer for write and read.
      */
@@ -50,6 +62,16 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
      */
     private Thread mLooper;
 
+    /**
+     * Thread for write the pending packets, used when the loop thread performs blocking reads.
+     */
+    private Thread mWriter;
+
+    /**
+     * Signal for the writer thread, released for each packet added to pending queue.
+     */
+    private final Semaphore mWriteSignal = new Semaphore(0);
+
     /**
      * Dispatcher for all MQTT packet, call specific method with packet casted
      */
@@ -63,6 +85,37 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
 
     private Message mWillMessage;
 
+    /**
+     * True if a write of the pending queue is already scheduled on the event loop.
+     */
+    private final AtomicBoolean mFlushScheduled = new AtomicBoolean(false);
+
+    /**
+     * Tasks to run when the outbound queue drains, in order, see {@link #whenDrained(int, Runnable)}.
+     */
+    private final Queue<DrainTask> mDrainTasks = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Packets that need an ack taken from the pending queue when all identifiers of session were in flight,
+     * in order. Used only by who writes the pending queue.
+     */
+    private final QueueMQTT<MQTTPacket> mWaitingPacketIDs = new QueueMQTT<>();
+
+    /**
+     * True if the writer is waiting the release of a packet identifier, all identifiers of session are in flight.
+     */
+    private volatile boolean mWaitingPacketID;
+
+    private static class DrainTask {
+        private final int mLowWatermark;
+        private final Runnable mTask;
+
+        private DrainTask(int lowWatermark, Runnable task) {
+            mLowWatermark = lowWatermark;
+            mTask = task;
+        }
+    }
+
     public Client(ConnectionSettings connectionSettings, ClientSession clientSession,
                   Transport transport, List<MQTTPacket> pendingQueue) {
         mTransport = transport;
@@ -100,9 +153,7 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
                     if((incomePacket = mTransport.readPacket((mConnectionSettings.getKeepAliveSeconds() * 1000))) != null) {
                         if(incomePacket.getCommand().equals(MQTTPacket.Type.CONNACK)) {
                             if(((ConnAck)incomePacket).getConnectionStatus() == ConnectionStatus.ACCEPT) {
-                                mLooper = new Thread(this::loop);
-                                mConnected = true;
-                                mLooper.start();
+                                startLoop();
                                 CustomLogger.LOGGER.info("Client " + getClientSession().getClientID() + " connected!");
                                 return true;
                             } else throw new MQTTProtocolException(((ConnAck)incomePacket).getConnectionStatus().toString());
@@ -147,15 +198,43 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
         synchronized (mPendingQueue) {
             mPendingQueue.add(packet);
         }
+        onPendingPacket();
     }
 
+    /**
+     * Start the loop for read and write the packets. With a non blocking transport
+     * the client is driven by the event loop of the transport, otherwise the loop and writer threads are started.
+     */
     public void startLoop() {
         synchronized (mLock) {
-            mLooper = new Thread(this::loop);
+            if(mTransport instanceof TransportNIO) {
+                mConnected = true;
+                ((TransportNIO) mTransport).setPacketListener(new EventLoopListener());
+                mTransport.setDrainListener(this::checkDrained);
+                onPendingPacket();
+            } else {
+                startLoop(LOOP_THREADS);
+            }
+        }
+    }
+
+    /**
+     * Start the loop with blocking reads, without polling: the loop thread waits for incoming packets
+     * until the keep alive expires, and a writer thread writes the pending packets as soon as they are added.
+     * With virtual threads a blocked thread is cheap, so this scale to many connections.
+     * @param threadFactory Factory for the loop and writer threads.
+     */
+    public void startLoop(ThreadFactory threadFactory) {
+        synchronized (mLock) {
             mConnected = true;
+            mWriter = threadFactory.newThread(this::writerLoop);
+            mLooper = threadFactory.newThread(this::loop);
+            mWriter.start();
             mLooper.start();
+            onPendingPacket();
         }
     }
+
     /**
      * Disconnect this client sending a disconnect packet.
      * @return A Future for disconnect task.
@@ -168,13 +247,20 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
                         mTransport.writePacket(new Disconnect());
                         mTransport.close();
                         mConnected = false;
-                        mLooper.interrupt();
-                        mLooper.join();
+                        if(mWriter != null) {
+                            mWriter.interrupt();
+                            mWriter.join();
+                        }
+                        if(mLooper != null) {
+                            mLooper.interrupt();
+                            mLooper.join();
+                        }
                     } catch (IOException | InterruptedException e) {
                         e.printStackTrace();
                     } finally {
                         mTransport = null;
                         mLooper = null;
+                        mWriter = null;
                         mConnected = false;
                     }
                 }
@@ -184,24 +270,24 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
     }
 
 
+    /**
+     * Loop with blocking reads, see {@link #startLoop(ThreadFactory)}.
+     */
     private void loop() {
+        Transport transport = mTransport;
         try {
             while (isConnected()) {
                 try {
-                    // 1. send packet from mPendingQueue
-                    sendPendingQueue();
-                    // 2. read packet
-                    MQTTPacket incoming = mTransport.readPacket(SOCKET_IO_TIMEOUT);
+                    // read packet, wait at most until the keep alive expires
+                    MQTTPacket incoming = transport.readPacket(nextReadTimeout());
                     if(incoming != null) {
-                        // 3. packet received, dispatch it.
                         mTimeLastMessageArrived = System.currentTimeMillis();
                         mPacketDispatcher.dispatch(incoming);
                     } else throw new IOException("Socket Closed!");
-                } catch (SocketTimeoutException ignored) { } // ignored for because, is like to polling read from socket.
-
+                } catch (SocketTimeoutException ignored) { } // keep alive checked below
 
                 long now = System.currentTimeMillis();
-                if(now - mTimeLastMessageArrived > getKeepAliveTimeout()) {
+                if(getKeepAliveTimeout() > 0 && now - mTimeLastMessageArrived > getKeepAliveTimeout()) {
                     // keep alive ends
                     onKeepAliveTimeout();
                 }
@@ -210,24 +296,204 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
             ex.printStackTrace();
             if(mClientCallback != null) mClientCallback.onConnectionLost(this, ex);
         }
+        Thread writer = mWriter;
+        if(writer != null)
+            writer.interrupt();
         if(mClientCallback != null) mClientCallback.onDisconnect(this);
     }
 
+    /**
+     * @return Time until the expiration of keep alive, or the keep alive timeout if already expired.
+     * 0 if there is no keep alive (infinite wait).
+     */
+    private int nextReadTimeout() {
+        long timeout = getKeepAliveTimeout();
+        if(timeout <= 0)
+            return 0;
+        long remaining = timeout - (System.currentTimeMillis() - mTimeLastMessageArrived);
+        return (int) ((remaining > 0) ? remaining : timeout);
+    }
+
+    /**
+     * Writer loop, write the pending queue each time the write signal is released.
+     */
+    private void writerLoop() {
+        try {
+            while (isConnected()) {
+                mWriteSignal.acquire();
+                mWriteSignal.drainPermits();
+                sendPendingQueue();
+            }
+        } catch (InterruptedException ignored) {
+        } catch (IOException e) {
+            // close the transport, the loop thread detects the connection lost
+            try {
+                Transport transport = mTransport;
+                if(transport != null)
+                    transport.close();
+            } catch (IOException ignored) { }
+        }
+    }
+
+    /**
+     * Called after a packet is added to the pending queue, wake up who writes: with a non blocking transport
+     * the write is scheduled on the event loop, otherwise the writer thread is signaled.
+     */
+    private void onPendingPacket() {
+        Transport transport = mTransport;
+        if(mWriter != null) {
+            mWriteSignal.release();
+        } else if(transport instanceof TransportNIO && mConnected && mFlushScheduled.compareAndSet(false, true)) {
+            ((TransportNIO) transport).getEventLoop().execute(() -> {
+                mFlushScheduled.set(false);
+                try {
+                    if(isConnected())
+                        sendPendingQueue();
+                } catch (IOException e) {
+                    CustomLogger.LOGGER.severe("Client: " + e);
+                }
+            });
+        }
+    }
+
     /**
      * Send all packet inside the pending queue. Auto move the packet, if send, to
      * the queue of session for "packet send but not acknowledged" if the qos is > qos 0
      */
     private void sendPendingQueue() throws IOException {
+        Transport transport = mTransport;
+        if(transport == null)
+            return;
+        List<MQTTPacket> packets = new ArrayList<>();
+        // the packets waiting an identifier are sent first, in order, as soon as the identifiers are released
+        int packetID;
+        while (!mWaitingPacketIDs.isEmpty() && (packetID = acquirePacketID()) >= 0)
+            packets.add(startInflight(mWaitingPacketIDs.poll(), packetID));
+        int consumed = 0;
         for(MQTTPacket packet : mPendingQueue) {
-            mTransport.writePacket(packet);
-            // for packet send with qos > qos0, enqueue it because need to be acknowledged
-            if(packet.getQos().ordinal() > Qos.QOS_0.ordinal())
-                getClientSession().getSendedNotAck().add(packet);
-
-            // after send remove from pending queue
-            synchronized (mPendingQueue) {
-                mPendingQueue.remove(packet);
+            consumed++;
+            // for packet send with qos > qos0, enqueue it because need to be acknowledged.
+            // Enqueued before the write, the ack can be read by another thread as soon as the packet is written.
+            if(packet.getQos().ordinal() > Qos.QOS_0.ordinal()) {
+                // with all identifiers in flight the packet waits an ack, the acks and the qos 0 packets behind it
+                // are written anyway, so the peer can release its own identifiers
+                if(!mWaitingPacketIDs.isEmpty() || (packetID = acquirePacketID()) < 0) {
+                    mWaitingPacketIDs.add(packet);
+                    continue;
+                }
+                packet = startInflight(packet, packetID);
             }
+            packets.add(packet);
+        }
+        if(packets.isEmpty()) {
+            removePending(consumed);
+            checkDrained();
+            return;
+        }
+        // written together, the transport can coalesce them
+        transport.writePackets(packets);
+        // the transport has encoded the packets, release the references of the publish shared by a fan out
+        for(MQTTPacket packet : packets) {
+            if(packet instanceof Publish)
+                ((Publish) packet).release();
+        }
+
+        // after send remove from pending queue, the new packets are added at the tail
+        removePending(consumed);
+        checkDrained();
+    }
+
+    /**
+     * Remove the first packets of pending queue, already sent or moved to the packets waiting an identifier.
+     */
+    private void removePending(int count) {
+        synchronized (mPendingQueue) {
+            for(int i = 0; i < count; i++)
+                mPendingQueue.poll();
+        }
+    }
+
+    /**
+     * Assign an identifier to a packet that need an ack, and add it to the packets not acknowledged.
+     * @return The packet to write, with the identifier.
+     */
+    private MQTTPacket startInflight(MQTTPacket packet, int packetID) {
+        packet = withPacketID(packet, packetID);
+        getClientSession().getSendedNotAck().put(packetID, packet);
+        return packet;
+    }
+
+    /**
+     * Acquire a packet identifier of the session for a packet to send. If all identifiers are in flight
+     * the writer waits: the release of an identifier wakes it up.
+     * @return The identifier, -1 if all identifiers are in use.
+     */
+    private int acquirePacketID() {
+        PacketIDAllocator packetIDs = getClientSession().getPacketIDs();
+        int packetID = packetIDs.acquire();
+        if(packetID < 0) {
+            mWaitingPacketID = true;
+            // check again after the flag, an identifier released before it is not lost
+            packetID = packetIDs.acquire();
+            if(packetID >= 0)
+                mWaitingPacketID = false;
+        }
+        return packetID;
+    }
+
+    /**
+     * Release the packet identifier of a packet acknowledged, and wake up the writer if it's waiting for one.
+     */
+    protected void releasePacketID(int packetID) {
+        getClientSession().getPacketIDs().release(packetID);
+        if(mWaitingPacketID) {
+            mWaitingPacketID = false;
+            onPendingPacket();
+        }
+    }
+
+    /**
+     * @return Copy of the packet with the packet identifier, the packets are shared so are not modified.
+     */
+    private static MQTTPacket withPacketID(MQTTPacket packet, int packetID) {
+        if(packet instanceof Publish)
+            return ((Publish) packet).withMessageID(packetID);
+        if(packet instanceof Subscribe)
+            return ((Subscribe) packet).withMessageID(packetID);
+        if(packet instanceof Unsubscribe)
+            return ((Unsubscribe) packet).withMessageID(packetID);
+        return packet;
+    }
+
+    /**
+     * @return Number of packets waiting to be written: in the pending queue, waiting an identifier
+     * and in the write queue of transport.
+     */
+    public int getOutboundDepth() {
+        Transport transport = mTransport;
+        return mPendingQueue.size() + mWaitingPacketIDs.size() + ((transport != null) ? transport.getPendingWrites() : 0);
+    }
+
+    /**
+     * Run a task once, when the outbound queue drains to a low watermark: for enqueue a long stream of packets
+     * a page at a time, without fill the memory of a slow client. The task runs on the thread that writes
+     * the packets (the writer thread or the event loop), so a task that enqueues the next page does not recurse.
+     * The tasks run in the order they are added.
+     * @param lowWatermark Max number of packets in the outbound queue for run the task.
+     * @param task Task to run.
+     */
+    public void whenDrained(int lowWatermark, Runnable task) {
+        mDrainTasks.add(new DrainTask(lowWatermark, task));
+        // the queue can be already drained, the writer checks it
+        onPendingPacket();
+    }
+
+    private void checkDrained() {
+        DrainTask drainTask;
+        // a task that enqueues packets stops the next ones, until the queue drains again
+        while ((drainTask = mDrainTasks.peek()) != null && getOutboundDepth() <= drainTask.mLowWatermark) {
+            if(mDrainTasks.remove(drainTask))
+                drainTask.mTask.run();
         }
     }
 
@@ -240,12 +506,25 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
         synchronized (mPendingQueue) {
             if(TopicMatcher.isValidTopicPublish(message.getTopic())) {
                 mPendingQueue.add(new Publish(message));
+                onPendingPacket();
                 return true;
             }
         }
         return false;
     }
 
+    /**
+     * Publish a packet already built, e.g. a shared packet forwarded to many clients.
+     * The topic is not validated again.
+     * @param publish Packet to be published.
+     */
+    public void publish(Publish publish) {
+        synchronized (mPendingQueue) {
+            mPendingQueue.add(publish);
+        }
+        onPendingPacket();
+    }
+
     /**
      * Subscribe to specific topic with Qos.
      * @param topic Topic to be subscribed
@@ -256,6 +535,7 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
         synchronized (mPendingQueue) {
             if(TopicMatcher.isValidSubscribeTopic(topic)) {
                 mPendingQueue.add(new Subscribe(topic, qos));
+                onPendingPacket();
                 return true;
             }
         }
@@ -270,6 +550,7 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
         synchronized (mPendingQueue) {
             mPendingQueue.add(new Unsubscribe(topic));
         }
+        onPendingPacket();
     }
 
     protected abstract void onKeepAliveTimeout() throws MQTTProtocolException;
@@ -284,24 +565,18 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
         } else if(publish.getQos() == Qos.QOS_1) {
             if(mClientCallback != null)
                 mClientCallback.onMessageArrived(this, publish.getMessage());
-            mPendingQueue.add(new PubAck(publish.getMessage().getMessageID()));
+            send(new PubAck(publish.getMessage().getMessageID()));
         } else if(publish.getQos() == Qos.QOS_2) {
             getClientSession().getReceivedNotAck().add(publish);
-            mPendingQueue.add(new PubRec(publish.getMessage().getMessageID()));
+            send(new PubRec(publish.getMessage().getMessageID()));
         }
     }
 
     @Override
     public void onPubAckReceive(PubAck pubAck) {
         CustomLogger.LOGGER.info(getClientSession().getClientID() + ", PubAck Received, id: " + pubAck.getMessageID());
-        Publish publish = (Publish) getClientSession().getSendedNotAck()
-                .stream()
-                .filter(packet -> (packet instanceof Publish) && ((Publish)packet).getMessage().getMessageID() == pubAck.getMessageID())
-                .findFirst()
-                .orElse(null);
-        boolean removed = getClientSession().getSendedNotAck()
-                .removeIf(packet -> (packet instanceof Publish) && ((Publish)packet).getMessage().getMessageID() == pubAck.getMessageID());
-        if(removed && publish != null && mClientCallback != null)
+        Publish publish = removeSendedPublish(pubAck.getMessageID());
+        if(publish != null && mClientCallback != null)
             mClientCallback.onDeliveryComplete(this, publish);
     }
 
@@ -310,16 +585,12 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
         CustomLogger.LOGGER.info(getClientSession().getClientID() + ", PubRec Received, id: " + pubRec.getMessageID());
 
         // no remove publish packet of qos 2 process
-        getClientSession().getSendedNotAck()
-                .stream()
-                .filter(packet -> (packet instanceof Publish) && ((Publish)packet).getMessage().getMessageID() == pubRec.getMessageID())
-                .findAny()
-                .ifPresent(packet -> {
-                    // publish is present inside the queue to be acked
-                    // store pubrec
-                    getClientSession().getReceivedNotAck().add(pubRec);
-                    mPendingQueue.add(new PubRel(pubRec.getMessageID()));
-                });
+        if(getClientSession().getSendedNotAck().get(pubRec.getMessageID()) instanceof Publish) {
+            // publish is present inside the queue to be acked
+            // store pubrec
+            getClientSession().getReceivedNotAck().add(pubRec);
+            send(new PubRel(pubRec.getMessageID()));
+        }
     }
 
     @Override
@@ -329,7 +600,7 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
                 .filter(packet -> (packet instanceof  Publish) && ((Publish)packet).getMessage().getMessageID() == pubRel.getMessageID())
                 .findFirst()
                 .ifPresent(packet -> {
-                    mPendingQueue.add(new PubComp(pubRel.getMessageID()));
+                    send(new PubComp(pubRel.getMessageID()));
                     if(mClientCallback != null)
                         mClientCallback.onMessageArrived(this, ((Publish) packet).getMessage());
                 });
@@ -342,14 +613,73 @@ public abstract class Client implements PacketDispatcher.IPacketReceiver {
         boolean removed = getClientSession().getReceivedNotAck()
                 .removeIf(packet -> (packet instanceof PubRec) && ((PubRec)packet).getMessageID() == pubComp.getMessageID());
         // remove publish message
-        Publish pub = (Publish) getClientSession().getSendedNotAck().stream()
-                .filter(packet -> (packet instanceof Publish) && ((Publish)packet).getMessage().getMessageID() == pubComp.getMessageID())
-                .findFirst()
-                .orElse(null);
-
-        getClientSession().getSendedNotAck().removeIf(packet -> (packet instanceof Publish) && ((Publish)packet).getMessage().getMessageID() == pubComp.getMessageID());
+        Publish pub = removeSendedPublish(pubComp.getMessageID());
 
         if(removed && pub != null && mClientCallback != null)
             mClientCallback.onDeliveryComplete(this, pub);
     }
+
+    /**
+     * Remove from the packets not acknowledged the publish of a packet identifier.
+     * @return The publish removed, null if the packet of the identifier is not a publish or it's already removed.
+     */
+    private Publish removeSendedPublish(int messageID) {
+        MQTTPacket packet = getClientSession().getSendedNotAck().get(messageID);
+        if(packet instanceof Publish && getClientSession().getSendedNotAck().remove(messageID, packet)) {
+            releasePacketID(messageID);
+            return (Publish) packet;
+        }
+        return null;
+    }
+
+    /**
+     * Listener of the event loop, used when the transport is non blocking.
+     * Replace the loop thread: dispatch the incoming packets and check the keep alive on each tick.
+     */
+    private class EventLoopListener implements TransportNIO.PacketListener {
+
+        private boolean mEnded = false;
+
+        @Override
+        public void onPacketReceived(MQTTPacket packet) {
+            try {
+                mTimeLastMessageArrived = System.currentTimeMillis();
+                mPacketDispatcher.dispatch(packet);
+            } catch (MQTTProtocolException ex) {
+                onLoopEnd(ex);
+            }
+        }
+
+        @Override
+        public void onTick(long now) {
+            try {
+                if(getKeepAliveTimeout() > 0 && now - mTimeLastMessageArrived > getKeepAliveTimeout())
+                    onKeepAliveTimeout();
+            } catch (MQTTProtocolException ex) {
+                onLoopEnd(ex);
+            }
+        }
+
+        @Override
+        public void onTransportClosed(Throwable cause) {
+            onLoopEnd((cause != null || isConnected()) ? new IOException("Socket Closed!", cause) : null);
+        }
+
+        private void onLoopEnd(Throwable ex) {
+            if(mEnded)
+                return;
+            mEnded = true;
+            mConnected = false;
+            try {
+                Transport transport = mTransport;
+                if(transport != null)
+                    transport.close();
+            } catch (IOException ignored) { }
+            if(ex != null) {
+                ex.printStackTrace();
+                if(mClientCallback != null) mClientCallback.onConnectionLost(Client.this, ex);
+            }
+            if(mClientCallback != null) mClientCallback.onDisconnect(Client.this);
+        }
+    }
 }
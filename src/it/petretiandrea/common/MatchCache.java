@@ -0,0 +1,303 @@
+package it.petretiandrea.common;
+
+import it.petretiandrea.core.packet.Subscribe;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Bounded cache from a published topic to the subscriptions that match it.
+ * The lookup is lock free. When full, an entry is evicted with the clock algorithm (an approximation of LRU):
+ * the entries used since the last sweep get a second chance.
+ * A change of a filter without wildcards removes the entry of its topic. A change of a filter with wildcards
+ * only marks as stale the entries of its first level, or all entries if the first level is a wildcard,
+ * without a scan of the cache: an entry older than the mark is dropped at its next lookup, or sweep.
+ * A match computed while a filter changes is not cached, see {@link #generation()}.
+ */
+public class MatchCache {
+
+    /**
+     * Subscriptions that match a topic, immutable.
+     */
+    public static class Entry {
+        private final String mTopic;
+        private final String[] mClientIDs;
+        private final Subscribe[] mSubscribes;
+        /**
+         * Shared subscriptions that match, the member is selected for each message.
+         */
+        private final SubscriptionTree.SharedGroup[] mGroups;
+        /**
+         * Generation of the filters matched, and the first level of the topic, null if not cached.
+         */
+        private final long mGeneration;
+        private final Level mLevel;
+        private volatile boolean mReferenced;
+
+        private Entry(String topic, String[] clientIDs, Subscribe[] subscribes, SubscriptionTree.SharedGroup[] groups,
+                      long generation, Level level) {
+            mTopic = topic;
+            mClientIDs = clientIDs;
+            mSubscribes = subscribes;
+            mGroups = groups;
+            mGeneration = generation;
+            mLevel = level;
+        }
+
+        public void forEach(BiConsumer<String, Subscribe> consumer) {
+            forEach(0, mClientIDs.length, consumer);
+        }
+
+        /**
+         * Visit the subscriptions in a range of indexes, for split the visit in chunks.
+         * @param from First index, inclusive.
+         * @param to Last index, exclusive.
+         */
+        public void forEach(int from, int to, BiConsumer<String, Subscribe> consumer) {
+            for(int i = from; i < to; i++)
+                consumer.accept(mClientIDs[i], mSubscribes[i]);
+        }
+
+        public SubscriptionTree.SharedGroup[] getGroups() {
+            return mGroups;
+        }
+
+        public int size() {
+            return mClientIDs.length;
+        }
+    }
+
+    /**
+     * First level of the topics cached, with the generation of the last change of a wildcard filter of that level.
+     */
+    private static class Level {
+        private volatile long mStale;
+    }
+
+    private final int mCapacity;
+    private final Map<String, Entry> mEntries;
+    /**
+     * Levels of the entries cached, by first level of topic. Guarded by mClock.
+     */
+    private final Map<String, Level> mLevels;
+    /**
+     * Entries in order of insert, for the clock sweep. It can contain entries already invalidated,
+     * skipped by the sweep. Guarded by itself.
+     */
+    private final ArrayDeque<Entry> mClock;
+    /**
+     * Incremented for each change of the filters, guarded by mClock.
+     */
+    private volatile long mGeneration;
+    /**
+     * Generation of the last change of a filter with a wildcard at the first level, it marks stale all entries.
+     */
+    private volatile long mStale;
+
+    private final LongAdder mHits;
+    private final LongAdder mMisses;
+    private final LongAdder mEvictions;
+    private final LongAdder mInvalidations;
+
+    /**
+     * @param capacity Max number of topics cached, 0 for disable the cache.
+     */
+    public MatchCache(int capacity) {
+        mCapacity = capacity;
+        mEntries = new ConcurrentHashMap<>();
+        mLevels = new HashMap<>();
+        mClock = new ArrayDeque<>();
+        mGeneration = 0;
+        mHits = new LongAdder();
+        mMisses = new LongAdder();
+        mEvictions = new LongAdder();
+        mInvalidations = new LongAdder();
+    }
+
+    /**
+     * @return The subscriptions cached for the topic, null if not cached.
+     */
+    public Entry get(String topic) {
+        if(mCapacity == 0)
+            return null;
+        Entry entry = mEntries.get(topic);
+        if(entry != null && isStale(entry)) {
+            if(mEntries.remove(topic, entry))
+                mInvalidations.increment();
+            entry = null;
+        }
+        if(entry != null) {
+            entry.mReferenced = true;
+            mHits.increment();
+        } else {
+            mMisses.increment();
+        }
+        return entry;
+    }
+
+    /**
+     * @return True if a filter that can match the topic of entry is changed after the entry is cached.
+     */
+    private boolean isStale(Entry entry) {
+        return entry.mGeneration < mStale || entry.mGeneration < entry.mLevel.mStale;
+    }
+
+    /**
+     * Current generation of filters, read it before the match of a topic to be cached.
+     */
+    public long generation() {
+        return mGeneration;
+    }
+
+    /**
+     * Cache the subscriptions that match a topic, only if no filter is changed since the generation read
+     * before the match, otherwise the match can miss a change and it's discarded.
+     * @return The entry, cached or not.
+     */
+    public Entry put(String topic, String[] clientIDs, Subscribe[] subscribes, SubscriptionTree.SharedGroup[] groups, long generation) {
+        if(mCapacity == 0)
+            return new Entry(topic, clientIDs, subscribes, groups, generation, null);
+        synchronized (mClock) {
+            Entry old = mEntries.get(topic);
+            if(generation != mGeneration || (old != null && !isStale(old)))
+                return new Entry(topic, clientIDs, subscribes, groups, generation, null);
+            Level level = mLevels.computeIfAbsent(firstLevel(topic), l -> new Level());
+            Entry entry = new Entry(topic, clientIDs, subscribes, groups, generation, level);
+            if(old == null) {
+                while (mEntries.size() >= mCapacity)
+                    evict();
+            } else {
+                mInvalidations.increment();
+            }
+            mEntries.put(topic, entry);
+            mClock.add(entry);
+            // drop the entries invalidated, if they are the most
+            if(mClock.size() > mCapacity * 2)
+                mClock.removeIf(e -> mEntries.get(e.mTopic) != e);
+            // drop the levels without entries, if they are the most
+            if(mLevels.size() > mCapacity * 2) {
+                Set<Level> used = Collections.newSetFromMap(new IdentityHashMap<>());
+                mEntries.values().forEach(e -> used.add(e.mLevel));
+                mLevels.values().retainAll(used);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Sweep the clock until an entry not used since the last sweep is found, and remove it.
+     */
+    private void evict() {
+        Entry entry;
+        while ((entry = mClock.poll()) != null) {
+            if(mEntries.get(entry.mTopic) != entry)
+                continue; // already invalidated
+            if(isStale(entry)) {
+                mEntries.remove(entry.mTopic);
+                mInvalidations.increment();
+                return;
+            }
+            if(entry.mReferenced) {
+                entry.mReferenced = false;
+                mClock.add(entry);
+            } else {
+                mEntries.remove(entry.mTopic);
+                mEvictions.increment();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Invalidate the topics that can be matched by a filter subscribed or unsubscribed.
+     * Call it after the change of filter. It does not scan the cache.
+     * @param filter Topic filter changed.
+     */
+    public void invalidate(String filter) {
+        invalidate(Collections.singletonList(filter));
+    }
+
+    /**
+     * Invalidate the topics that can be matched by many filters, e.g. all filters of a client.
+     * @param filters Topic filters changed.
+     */
+    public void invalidate(Collection<String> filters) {
+        if(mCapacity == 0 || filters.isEmpty())
+            return;
+        synchronized (mClock) {
+            long generation = ++mGeneration;
+            for(String filter : filters) {
+                if(filter.indexOf('+') < 0 && filter.indexOf('#') < 0) {
+                    // a filter without wildcards match only the same topic
+                    if(mEntries.remove(filter) != null)
+                        mInvalidations.increment();
+                    continue;
+                }
+                String level = firstLevel(filter);
+                if(level.equals("+") || level.equals("#")) {
+                    mStale = generation;
+                } else {
+                    Level stale = mLevels.get(level);
+                    if(stale != null)
+                        stale.mStale = generation;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return First level of a topic or filter.
+     */
+    private static String firstLevel(String topic) {
+        int separator = topic.indexOf('/');
+        return (separator < 0) ? topic : topic.substring(0, separator);
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    public int size() {
+        return mEntries.size();
+    }
+
+    public long getHits() {
+        return mHits.sum();
+    }
+
+    public long getMisses() {
+        return mMisses.sum();
+    }
+
+    public long getEvictions() {
+        return mEvictions.sum();
+    }
+
+    /**
+     * @return Number of entries removed because of a change of filters.
+     * The entries marked stale are counted when they are dropped.
+     */
+    public long getInvalidations() {
+        return mInvalidations.sum();
+    }
+
+    public double getHitRate() {
+        long hits = mHits.sum();
+        long total = hits + mMisses.sum();
+        return (total > 0) ? (double) hits / total : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MatchCache{capacity=%d, size=%d, hits=%d, misses=%d, hitRate=%.3f, evictions=%d, invalidations=%d}",
+                mCapacity, size(), getHits(), getMisses(), getHitRate(), getEvictions(), getInvalidations());
+    }
+}
@@ -0,0 +1,321 @@
+package it.petretiandrea.common;
+
+import it.petretiandrea.core.Message;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Retained messages, at most one for each topic, in a tree with a node for each level of the topic.
+ * The messages that match a filter are found visiting only the subtree of the filter: the levels before
+ * the first wildcard are followed with a lookup, + visits the children of a level and # all its subtree.
+ * The match is lock free. The writers of different topics do not block each other: a node is locked only for
+ * replace its message, or for add and remove its children, and the locks are taken from the root to the leaf.
+ * A node without message and children is removed from the tree, and marked dead so a writer that reached it
+ * before the remove retries from the root.
+ */
+public class RetainedMessageStore {
+
+    private static final String SINGLE_LEVEL = "+";
+    private static final String MULTI_LEVEL = "#";
+
+    private static class Node {
+        private final Map<String, Node> mChildren = new ConcurrentHashMap<>();
+        private volatile Message mMessage;
+        /**
+         * Removed from the tree, guarded by the lock of the node.
+         */
+        private boolean mDead;
+
+        private boolean isEmpty() {
+            return mMessage == null && mChildren.isEmpty();
+        }
+    }
+
+    /**
+     * Resumable visit of the retained messages that match a filter, for deliver them a page at a time.
+     * It's the same visit of {@link #match(String, Consumer)}, with an explicit stack of the nodes in visit.
+     * The children are iterated as they are at the time of the visit, so a page sees the changes
+     * made after the previous page, and the memory used is bounded by the depth of the filter, not by the messages.
+     * Not thread safe, a cursor must be used by one thread at a time.
+     */
+    public class Cursor {
+        private final String[] mLevels;
+        private final ArrayDeque<Frame> mStack;
+        private boolean mStarted;
+
+        private Cursor(String filter) {
+            mLevels = TopicMatcher.levels(filter);
+            mStack = new ArrayDeque<>();
+        }
+
+        /**
+         * Visit the next messages that match.
+         * @param max Max number of messages visited.
+         * @param consumer Receive each message.
+         * @return Number of messages visited, less than max only at the end of the visit.
+         */
+        public int next(int max, Consumer<Message> consumer) {
+            int count = 0;
+            if(!mStarted) {
+                mStarted = true;
+                count += push(mRoot, 0, consumer);
+            }
+            while (count < max && !mStack.isEmpty()) {
+                Frame frame = mStack.peek();
+                if(frame.mChildren == null || !frame.mChildren.hasNext()) {
+                    mStack.pop();
+                    continue;
+                }
+                Map.Entry<String, Node> child = frame.mChildren.next();
+                // the first level wildcards do not match the topics that start with $
+                if(frame.mIndex == 0 && child.getKey().startsWith("$") && frame.mWildcard)
+                    continue;
+                count += push(child.getValue(), frame.mAll ? ALL : frame.mNextIndex, consumer);
+            }
+            return count;
+        }
+
+        /**
+         * @return False if all messages that match are visited.
+         */
+        public boolean hasNext() {
+            return !mStarted || !mStack.isEmpty();
+        }
+
+        /**
+         * Start the visit of a node.
+         * @param index Index of the level of filter matched by the children of node, or {@link #ALL} for all subtree.
+         * @return Number of messages visited, 0 or 1.
+         */
+        private int push(Node node, int index, Consumer<Message> consumer) {
+            Message message = null;
+            Frame frame = new Frame();
+            frame.mIndex = index;
+            if(index == ALL) {
+                message = node.mMessage;
+                frame.mAll = true;
+                frame.mChildren = node.mChildren.entrySet().iterator();
+            } else if(index == mLevels.length) {
+                message = node.mMessage;
+            } else if(MULTI_LEVEL.equals(mLevels[index])) {
+                // # match also the parent level, "sport/#" match "sport"
+                if(index > 0)
+                    message = node.mMessage;
+                frame.mAll = true;
+                frame.mWildcard = true;
+                frame.mChildren = node.mChildren.entrySet().iterator();
+            } else if(SINGLE_LEVEL.equals(mLevels[index])) {
+                frame.mWildcard = true;
+                frame.mNextIndex = index + 1;
+                frame.mChildren = node.mChildren.entrySet().iterator();
+            } else {
+                Node child = node.mChildren.get(mLevels[index]);
+                frame.mNextIndex = index + 1;
+                if(child != null)
+                    frame.mChildren = Collections.singletonMap(mLevels[index], child).entrySet().iterator();
+            }
+            if(frame.mChildren != null)
+                mStack.push(frame);
+            if(message == null)
+                return 0;
+            consumer.accept(message);
+            return 1;
+        }
+    }
+
+    /**
+     * Node in visit by a cursor.
+     */
+    private static class Frame {
+        private int mIndex;
+        private int mNextIndex;
+        /**
+         * The children match all the levels, because of #.
+         */
+        private boolean mAll;
+        /**
+         * The children are matched by a wildcard.
+         */
+        private boolean mWildcard;
+        private Iterator<Map.Entry<String, Node>> mChildren;
+    }
+
+    private static final int ALL = -1;
+
+    private final Node mRoot;
+    private final AtomicInteger mSize;
+
+    public RetainedMessageStore() {
+        mRoot = new Node();
+        mSize = new AtomicInteger(0);
+    }
+
+    /**
+     * Retain a message, replacing the previous message of the same topic.
+     * @return The message replaced, null if the topic had not a retained message.
+     */
+    public Message put(Message message) {
+        return put(message, TopicMatcher.levels(message.getTopic()));
+    }
+
+    /**
+     * Retain a message, with its topic already split in levels, see {@link TopicMatcher#levels(String)}.
+     */
+    public Message put(Message message, String[] levels) {
+        while (true) {
+            Node node = find(levels, true);
+            if(node == null)
+                continue; // a node of the path was removed, retry
+            synchronized (node) {
+                if(node.mDead)
+                    continue;
+                Message previous = node.mMessage;
+                node.mMessage = message;
+                if(previous == null)
+                    mSize.incrementAndGet();
+                return previous;
+            }
+        }
+    }
+
+    /**
+     * Remove the retained message of a topic, e.g. for a retained publish with empty payload.
+     * @return The message removed, null if the topic had not a retained message.
+     */
+    public Message remove(String topic) {
+        return remove(TopicMatcher.levels(topic));
+    }
+
+    /**
+     * Remove the retained message of a topic already split in levels, see {@link TopicMatcher#levels(String)}.
+     */
+    public Message remove(String[] levels) {
+        Node[] path = new Node[levels.length + 1];
+        path[0] = mRoot;
+        for(int i = 0; i < levels.length; i++) {
+            path[i + 1] = path[i].mChildren.get(levels[i]);
+            if(path[i + 1] == null)
+                return null;
+        }
+        Message previous;
+        Node leaf = path[levels.length];
+        synchronized (leaf) {
+            previous = leaf.mMessage;
+            leaf.mMessage = null;
+        }
+        if(previous != null)
+            mSize.decrementAndGet();
+        // remove the empty nodes, from the leaf to the root
+        for(int i = levels.length; i > 0; i--) {
+            Node parent = path[i - 1];
+            Node child = path[i];
+            synchronized (parent) {
+                synchronized (child) {
+                    if(child.mDead || !child.isEmpty() || parent.mChildren.get(levels[i - 1]) != child)
+                        break;
+                    child.mDead = true;
+                    parent.mChildren.remove(levels[i - 1]);
+                }
+            }
+        }
+        return previous;
+    }
+
+    /**
+     * @return The retained message of the topic, null if not present.
+     */
+    public Message get(String topic) {
+        Node node = find(TopicMatcher.levels(topic), false);
+        return (node != null) ? node.mMessage : null;
+    }
+
+    /**
+     * Find the node of a topic.
+     * @param create True for create the missing nodes.
+     * @return The node, null if it's not present or if a node of the path was removed while creating it.
+     */
+    private Node find(String[] levels, boolean create) {
+        Node node = mRoot;
+        for(String level : levels) {
+            Node child = node.mChildren.get(level);
+            if(child == null) {
+                if(!create)
+                    return null;
+                synchronized (node) {
+                    if(node.mDead)
+                        return null;
+                    child = node.mChildren.computeIfAbsent(level, l -> new Node());
+                }
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    /**
+     * Visit the retained messages that match a topic filter, without lock.
+     * A message retained or removed during the visit can be visited or not.
+     * @param filter Topic filter of a subscription.
+     * @param consumer Receive each retained message that match.
+     */
+    public void match(String filter, Consumer<Message> consumer) {
+        match(mRoot, TopicMatcher.levels(filter), 0, consumer);
+    }
+
+    private static void match(Node node, String[] levels, int index, Consumer<Message> consumer) {
+        if(index == levels.length) {
+            Message message = node.mMessage;
+            if(message != null)
+                consumer.accept(message);
+            return;
+        }
+        String level = levels[index];
+        if(MULTI_LEVEL.equals(level)) {
+            // # match also the parent level, "sport/#" match "sport"
+            Message message = node.mMessage;
+            if(message != null && index > 0)
+                consumer.accept(message);
+            node.mChildren.forEach((name, child) -> {
+                if(index > 0 || !name.startsWith("$"))
+                    visitAll(child, consumer);
+            });
+        } else if(SINGLE_LEVEL.equals(level)) {
+            node.mChildren.forEach((name, child) -> {
+                if(index > 0 || !name.startsWith("$"))
+                    match(child, levels, index + 1, consumer);
+            });
+        } else {
+            Node child = node.mChildren.get(level);
+            if(child != null)
+                match(child, levels, index + 1, consumer);
+        }
+    }
+
+    /**
+     * @param filter Topic filter of a subscription.
+     * @return A cursor over the retained messages that match the filter, the visit starts at the first call of next.
+     */
+    public Cursor cursor(String filter) {
+        return new Cursor(filter);
+    }
+
+    private static void visitAll(Node node, Consumer<Message> consumer) {
+        Message message = node.mMessage;
+        if(message != null)
+            consumer.accept(message);
+        node.mChildren.values().forEach(child -> visitAll(child, consumer));
+    }
+
+    /**
+     * @return Number of topics with a retained message.
+     */
+    public int size() {
+        return mSize.get();
+    }
+}
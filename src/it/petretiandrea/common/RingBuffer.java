@@ -0,0 +1,194 @@
+package it.petretiandrea.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Bounded queue between many producers and a single consumer, on a ring of events preallocated:
+ * a producer claims a sequence, fills the event of its slot and publishes the sequence,
+ * so the handoff of a message does not allocate. The consumer handles in a batch all the events published.
+ * A producer waits when the ring is full, so a slow consumer slows down the producers (backpressure),
+ * and the consumer waits when the ring is empty, both with the {@link WaitStrategy} of the ring.
+ * @param <E> Type of events.
+ */
+public class RingBuffer<E> {
+
+    /**
+     * How a thread waits for the other side of the ring.
+     */
+    public enum WaitStrategy {
+        /**
+         * Yield a few times, then park the thread: the lowest cpu usage and the highest latency.
+         */
+        BLOCKING,
+        /**
+         * Yield the cpu to the other threads, a low latency if the threads are less than the cores.
+         */
+        YIELDING,
+        /**
+         * Spin without release the cpu, the lowest latency. Only with a free core for each thread of the ring.
+         */
+        BUSY_SPIN
+    }
+
+    /**
+     * Fill an event with the data of a message.
+     */
+    public interface Translator<E, A, B> {
+        void translate(E event, A arg0, B arg1);
+    }
+
+    /**
+     * Handle the events, in order of sequence.
+     */
+    public interface Handler<E> {
+        /**
+         * @param event Event published, reused for the next messages after the return.
+         * @param endOfBatch True if it's the last event available, e.g. for flush what is collected in the batch.
+         */
+        void onEvent(E event, boolean endOfBatch);
+    }
+
+    private static final long PARK_NANOS = 50_000;
+    private static final int YIELDS_BEFORE_PARK = 100;
+
+    private final Object[] mEvents;
+    private final int mMask;
+    /**
+     * Sequence published in each slot, -1 if the slot was never published.
+     */
+    private final AtomicLongArray mPublished;
+    /**
+     * Next sequence to claim by producers.
+     */
+    private final AtomicLong mClaimed;
+    /**
+     * Last sequence handled by consumer, the slots up to it can be reused.
+     */
+    private volatile long mConsumed;
+    private final WaitStrategy mWaitStrategy;
+    private volatile Thread mConsumer;
+    private volatile boolean mConsumerParked;
+
+    /**
+     * @param size Number of slots, rounded to the next power of 2.
+     * @param factory Factory of the events, called for each slot at creation.
+     * @param waitStrategy How the producers and the consumer wait.
+     */
+    public RingBuffer(int size, Supplier<E> factory, WaitStrategy waitStrategy) {
+        if(size <= 0)
+            throw new IllegalArgumentException("Invalid size of ring: " + size);
+        int capacity = Integer.highestOneBit(size);
+        capacity = (capacity < size) ? capacity << 1 : capacity;
+        mEvents = new Object[capacity];
+        for(int i = 0; i < capacity; i++)
+            mEvents[i] = factory.get();
+        mMask = capacity - 1;
+        mPublished = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; i++)
+            mPublished.set(i, -1);
+        mClaimed = new AtomicLong(0);
+        mConsumed = -1;
+        mWaitStrategy = waitStrategy;
+    }
+
+    /**
+     * Publish a message, waiting if the ring is full. Thread safe.
+     * @param translator Fill the event of the slot claimed.
+     */
+    public <A, B> void publish(Translator<E, A, B> translator, A arg0, B arg1) {
+        long sequence = mClaimed.getAndIncrement();
+        // wait the consumer to free the slot, handled a lap ago
+        for(int attempt = 0; sequence - mEvents.length > mConsumed; attempt++)
+            waitFor(true, attempt);
+        int index = (int) sequence & mMask;
+        @SuppressWarnings("unchecked")
+        E event = (E) mEvents[index];
+        translator.translate(event, arg0, arg1);
+        mPublished.set(index, sequence);
+        if(mConsumerParked)
+            LockSupport.unpark(mConsumer);
+    }
+
+    /**
+     * Handle the events published, in batches, until the thread is interrupted or the running flag is false.
+     * Only one thread can consume the ring.
+     * @param handler Handler of events.
+     * @param maxBatch Max number of events in a batch, the consumed sequence is advanced after each batch.
+     * @param running Checked when the ring is empty, False for return.
+     */
+    public void consume(Handler<E> handler, int maxBatch, BooleanSupplier running) {
+        mConsumer = Thread.currentThread();
+        long next = mConsumed + 1;
+        int attempt = 0;
+        while (true) {
+            // find the events published, contiguous from next
+            long available = next - 1;
+            while (available - next + 1 < maxBatch && mPublished.get((int) (available + 1) & mMask) == available + 1)
+                available++;
+            if(available < next) {
+                if(!running.getAsBoolean() || Thread.currentThread().isInterrupted())
+                    return;
+                waitFor(false, attempt++);
+                continue;
+            }
+            attempt = 0;
+            for(long sequence = next; sequence <= available; sequence++) {
+                @SuppressWarnings("unchecked")
+                E event = (E) mEvents[(int) sequence & mMask];
+                handler.onEvent(event, sequence == available);
+            }
+            next = available + 1;
+            mConsumed = available;
+        }
+    }
+
+    /**
+     * @param attempt Number of waits before this one, a blocking wait yields a few times before park.
+     */
+    private void waitFor(boolean producer, int attempt) {
+        switch (mWaitStrategy) {
+            case BUSY_SPIN:
+                break;
+            case YIELDING:
+                Thread.yield();
+                break;
+            default:
+                if(attempt < YIELDS_BEFORE_PARK) {
+                    Thread.yield();
+                } else if(producer) {
+                    LockSupport.parkNanos(PARK_NANOS);
+                } else {
+                    mConsumerParked = true;
+                    // check again after the flag, an event published before it is not lost
+                    if(mPublished.get((int) (mConsumed + 1) & mMask) != mConsumed + 1)
+                        LockSupport.parkNanos(this, PARK_NANOS * 20);
+                    mConsumerParked = false;
+                }
+                break;
+        }
+    }
+
+    /**
+     * Wake up the consumer, e.g. after the running flag is set to false.
+     */
+    public void wakeUp() {
+        Thread consumer = mConsumer;
+        if(consumer != null)
+            LockSupport.unpark(consumer);
+    }
+
+    /**
+     * @return Number of events claimed and not yet handled, the depth of the queue.
+     */
+    public int depth() {
+        return (int) Math.max(0, mClaimed.get() - 1 - mConsumed);
+    }
+
+    public int capacity() {
+        return mEvents.length;
+    }
+}
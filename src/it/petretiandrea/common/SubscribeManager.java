@@ -4,44 +4,306 @@ import it.petretiandrea.core.packet.Subscribe;
 import it.petretiandrea.core.packet.Unsubscribe;
 
 import java.util.*;
-import java.util.function.Predicate;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
 
+/**
+ * Subscriptions of the clients. The reads (match and getSubscriptions) are lock free,
+ * the changes are serialized by a lock.
+ */
 public class SubscribeManager {
 
     /**
-     * Subscription List for each ClientID
+     * Default number of topics with the matched subscriptions cached.
+     */
+    public static final int DEFAULT_MATCH_CACHE_SIZE = 8192;
+
+    /**
+     * How a message is delivered to the members of a shared subscription ($share/{group}/{filter}).
+     */
+    public enum SharedStrategy {
+        /**
+         * The members in turn.
+         */
+        ROUND_ROBIN,
+        /**
+         * A member at random.
+         */
+        RANDOM,
+        /**
+         * Always the same member for the same publisher, while that member is subscribed and connected.
+         */
+        STICKY,
+        /**
+         * The member with less messages not yet acknowledged.
+         */
+        LEAST_INFLIGHT
+    }
+
+    /**
+     * Min number of subscribers visited by a task of a parallel fan out, a smaller chunk costs more than it saves.
+     */
+    private static final int MIN_FAN_OUT_CHUNK = 256;
+
+    private static final SubscriptionTree.SharedGroup[] NO_GROUPS = new SubscriptionTree.SharedGroup[0];
+
+    /**
+     * Subscription List for each ClientID. The lists are immutable, replaced at each change,
+     * so they can be iterated while the client subscribes or unsubscribes.
      */
     private final Map<String, List<Subscribe>> mSubscribes;
 
+    /**
+     * Index of the subscriptions by topic levels, for the match of the published topics.
+     */
+    private final SubscriptionTree mSubscriptionTree;
+
+    /**
+     * Subscriptions matched by the topics published recently.
+     */
+    private final MatchCache mMatchCache;
+
+    /**
+     * Prefixes of the filters subscribed, for skip the topics without subscribers.
+     */
+    private final TopicPrefixFilter mPrefixFilter;
+
+    private final Object mWriteLock = new Object();
+
+    private volatile SharedStrategy mSharedStrategy = SharedStrategy.ROUND_ROBIN;
+
+    /**
+     * Pool for the fan out of the topics with many subscribers, null for always visit them on the caller thread.
+     */
+    private volatile ForkJoinPool mFanOutPool;
+    private volatile int mFanOutThreshold;
+
+    /**
+     * Number of messages not acknowledged by a client, negative if the client is not connected.
+     */
+    private volatile ToIntFunction<String> mInflightCounter = clientID -> 0;
 
     public SubscribeManager() {
-        mSubscribes = new HashMap<>();
+        this(DEFAULT_MATCH_CACHE_SIZE);
     }
 
+    /**
+     * @param matchCacheSize Max number of topics with the matched subscriptions cached, 0 for disable the cache.
+     */
+    public SubscribeManager(int matchCacheSize) {
+        mSubscribes = new ConcurrentHashMap<>();
+        mSubscriptionTree = new SubscriptionTree();
+        mMatchCache = new MatchCache(matchCacheSize);
+        mPrefixFilter = new TopicPrefixFilter();
+    }
+
+    /**
+     * Subscribe a client, a subscription with the same topic filter is replaced.
+     */
     public void subscribe(String clientID, Subscribe subscribe) {
-        synchronized (mSubscribes) {
-            if(!mSubscribes.containsKey(clientID))
-                mSubscribes.put(clientID, new ArrayList<>());
-            mSubscribes.get(clientID).add(subscribe);
+        synchronized (mWriteLock) {
+            List<Subscribe> subscriptions = new ArrayList<>(mSubscribes.getOrDefault(clientID, Collections.emptyList()));
+            String filter = TopicMatcher.getSharedFilter(subscribe.getTopic());
+            if(!subscriptions.removeIf(old -> old.getTopic().equals(subscribe.getTopic())))
+                mPrefixFilter.add(filter);
+            subscriptions.add(subscribe);
+            mSubscriptionTree.add(clientID, subscribe);
+            mSubscribes.put(clientID, Collections.unmodifiableList(subscriptions));
+            mMatchCache.invalidate(filter);
         }
     }
 
     public void unsubscribe(String clientID, Unsubscribe unsubscribe) {
-        synchronized (mSubscribes) {
+        synchronized (mWriteLock) {
             if(mSubscribes.containsKey(clientID)) {
-                mSubscribes.get(clientID).removeIf(subscribe -> subscribe.getTopic().equals(unsubscribe.getTopic()));
+                List<Subscribe> subscriptions = new ArrayList<>(mSubscribes.get(clientID));
+                subscriptions.removeIf(subscribe -> subscribe.getTopic().equals(unsubscribe.getTopic()));
+                if(mSubscriptionTree.remove(clientID, unsubscribe.getTopic())) {
+                    String filter = TopicMatcher.getSharedFilter(unsubscribe.getTopic());
+                    mPrefixFilter.remove(filter);
+                    mMatchCache.invalidate(filter);
+                }
+                mSubscribes.put(clientID, Collections.unmodifiableList(subscriptions));
             }
         }
     }
 
     public void unsubscribeAll(String clientID) {
-        synchronized (mSubscribes) {
-            mSubscribes.remove(clientID);
+        synchronized (mWriteLock) {
+            List<Subscribe> subscriptions = mSubscribes.remove(clientID);
+            if(subscriptions != null) {
+                List<String> filters = new ArrayList<>();
+                subscriptions.forEach(subscribe -> {
+                    if(mSubscriptionTree.remove(clientID, subscribe.getTopic())) {
+                        String filter = TopicMatcher.getSharedFilter(subscribe.getTopic());
+                        mPrefixFilter.remove(filter);
+                        filters.add(filter);
+                    }
+                });
+                mMatchCache.invalidate(filters);
+            }
         }
     }
+
+    /**
+     * @return A snapshot of the subscriptions of client, not modified by the next changes.
+     */
     public List<Subscribe> getSubscriptions(String clientID) {
-        synchronized (mSubscribes) {
-            return mSubscribes.getOrDefault(clientID, Collections.emptyList());
+        return mSubscribes.getOrDefault(clientID, Collections.emptyList());
+    }
+
+    /**
+     * Find the subscriptions that match a published topic, without lock:
+     * from the cache, or in O(levels of topic) from the subscription tree.
+     * @param topic Topic of publish.
+     * @param consumer Receive the client id and the subscription, once for each client, with the subscription of max qos
+     *                 among the ones of the client that match.
+     */
+    public void match(String topic, BiConsumer<String, Subscribe> consumer) {
+        match(topic, null, consumer);
+    }
+
+    /**
+     * Find the subscriptions that match a published topic, for each shared subscription that match
+     * only the member selected by the {@link SharedStrategy} receives the message.
+     * @param topic Topic of publish.
+     * @param publisherID Client id of the publisher, null if unknown.
+     * @param consumer Receive the client id and the subscription, once for each client, with the subscription of max qos
+     *                 among the ones of the client that match.
+     */
+    public void match(String topic, String publisherID, BiConsumer<String, Subscribe> consumer) {
+        match(topic, null, publisherID, consumer);
+    }
+
+    /**
+     * Find the subscriptions that match a published topic, already split in levels by the caller,
+     * so a publish is split once also when its levels are used by the retained messages.
+     * @param levels Levels of the topic, see {@link TopicMatcher#levels(String)}, null to split it only at a cache miss.
+     */
+    public void match(String topic, String[] levels, String publisherID, BiConsumer<String, Subscribe> consumer) {
+        // the topics without subscribers are not cached, they would evict the topics in use
+        if(!mPrefixFilter.mightMatch(topic))
+            return;
+        MatchCache.Entry entry = mMatchCache.get(topic);
+        if(entry == null)
+            entry = matchTree(topic, levels);
+        ForkJoinPool pool = mFanOutPool;
+        if(pool != null && entry.size() >= mFanOutThreshold) {
+            // the caller waits the end of the fan out, so the messages of a publisher keep their order
+            int chunk = Math.max(MIN_FAN_OUT_CHUNK, entry.size() / (pool.getParallelism() * 4));
+            pool.invoke(new FanOutTask(entry, 0, entry.size(), chunk, consumer));
+        } else {
+            entry.forEach(consumer);
+        }
+        SharedStrategy strategy = mSharedStrategy;
+        ToIntFunction<String> inflight = mInflightCounter;
+        for(SubscriptionTree.SharedGroup group : entry.getGroups())
+            group.select(strategy, publisherID, inflight, consumer);
+    }
+
+    /**
+     * Visit of a range of the subscriptions matched, split in halves until the range is at most a chunk.
+     */
+    private static class FanOutTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // the task is never serialized
+        private final transient MatchCache.Entry mEntry;
+        private final int mFrom;
+        private final int mTo;
+        private final int mChunk;
+        private final transient BiConsumer<String, Subscribe> mConsumer;
+
+        private FanOutTask(MatchCache.Entry entry, int from, int to, int chunk, BiConsumer<String, Subscribe> consumer) {
+            mEntry = entry;
+            mFrom = from;
+            mTo = to;
+            mChunk = chunk;
+            mConsumer = consumer;
+        }
+
+        @Override
+        protected void compute() {
+            if(mTo - mFrom <= mChunk) {
+                mEntry.forEach(mFrom, mTo, mConsumer);
+            } else {
+                int middle = (mFrom + mTo) >>> 1;
+                invokeAll(new FanOutTask(mEntry, mFrom, middle, mChunk, mConsumer),
+                        new FanOutTask(mEntry, middle, mTo, mChunk, mConsumer));
+            }
         }
     }
+
+    /**
+     * Match a topic on the subscription tree, and cache the result.
+     * A client with many filters that match the topic (e.g. "a/#" and "a/+/c") is matched once,
+     * with the subscription of max qos, so it receives a single copy of the message.
+     * The shared subscriptions are not merged, each group delivers its own copy.
+     */
+    private MatchCache.Entry matchTree(String topic, String[] levels) {
+        long generation = mMatchCache.generation();
+        Map<String, Subscribe> subscriptions = new LinkedHashMap<>();
+        List<SubscriptionTree.SharedGroup> groups = new ArrayList<>(0);
+        mSubscriptionTree.match(topic, levels, new SubscriptionTree.MatchVisitor() {
+            @Override
+            public void onSubscription(String clientID, Subscribe subscribe) {
+                subscriptions.merge(clientID, subscribe, (old, other) ->
+                        (other.getQosSub().ordinal() > old.getQosSub().ordinal()) ? other : old);
+            }
+
+            @Override
+            public void onSharedGroup(SubscriptionTree.SharedGroup group) {
+                groups.add(group);
+            }
+        });
+        return mMatchCache.put(topic, subscriptions.keySet().toArray(new String[0]), subscriptions.values().toArray(new Subscribe[0]),
+                groups.isEmpty() ? NO_GROUPS : groups.toArray(NO_GROUPS), generation);
+    }
+
+    /**
+     * Fast negative check, in constant time and without allocation.
+     * @return False if no client is subscribed to the topic, True if a client can be subscribed.
+     */
+    public boolean hasSubscribers(String topic) {
+        return mPrefixFilter.mightMatch(topic);
+    }
+
+    /**
+     * Deliver in parallel the messages of the topics with many subscribers, e.g. a broadcast to all devices:
+     * the subscribers are split in chunks, visited by the threads of pool. With a parallel fan out
+     * the consumer of {@link #match(String, String, BiConsumer)} must be thread safe.
+     * @param pool Pool of the fan out, null for disable it.
+     * @param threshold Min number of subscribers for a parallel fan out, below it they are visited on the caller thread.
+     */
+    public void setParallelFanOut(ForkJoinPool pool, int threshold) {
+        mFanOutThreshold = threshold;
+        mFanOutPool = pool;
+    }
+
+    public SharedStrategy getSharedStrategy() {
+        return mSharedStrategy;
+    }
+
+    public void setSharedStrategy(SharedStrategy sharedStrategy) {
+        mSharedStrategy = Objects.requireNonNull(sharedStrategy);
+    }
+
+    /**
+     * Set how the messages not acknowledged by a client are counted, for the strategy {@link SharedStrategy#LEAST_INFLIGHT}
+     * and for prefer the connected members of a shared subscription.
+     * @param inflightCounter Number of messages not acknowledged by a client, negative if the client is not connected.
+     */
+    public void setInflightCounter(ToIntFunction<String> inflightCounter) {
+        mInflightCounter = Objects.requireNonNull(inflightCounter);
+    }
+
+    /**
+     * @return The cache of the matches, with its hit and miss counters.
+     */
+    public MatchCache getMatchCache() {
+        return mMatchCache;
+    }
 }
@@ -0,0 +1,468 @@
+package it.petretiandrea.common;
+
+import it.petretiandrea.core.packet.Subscribe;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.ToIntFunction;
+
+/**
+ * Tree of the subscriptions, with a node for each level of the topic filters.
+ * The wildcards + and # are nodes too, so the subscriptions that match a topic are found
+ * visiting at most three children for each level of the topic, regardless of the number of subscriptions.
+ * The match is lock free and can run at the same time of add and remove: the children are in concurrent maps,
+ * and the subscriptions of a node are an immutable list replaced at each change (copy on write).
+ * The list is split in chunks, so a change copies one chunk and not all the subscribers of a broadcast topic,
+ * and the writer finds the subscription of a client with an index, not a scan.
+ * A match sees each node as before or after a concurrent change, never a partial change.
+ * The filters without wildcards are kept in a hash map by topic, out of the tree: they are found with a lookup,
+ * and the walk of the tree is needed only for the filters with wildcards.
+ * The shared subscriptions ($share/{group}/{filter}) are in the node of their filter, grouped by name:
+ * the match returns the group, and the member that receives the message is selected for each message.
+ * The writers (add and remove) must be serialized by the caller.
+ */
+public class SubscriptionTree {
+
+    /**
+     * Receive the subscriptions that match a topic.
+     */
+    public interface MatchVisitor {
+        void onSubscription(String clientID, Subscribe subscribe);
+        void onSharedGroup(SharedGroup group);
+    }
+
+    private static final String SINGLE_LEVEL = "+";
+    private static final String MULTI_LEVEL = "#";
+    private static final String[] NO_LEVELS = new String[0];
+
+    /**
+     * Immutable list of the subscriptions of a node, with the client id at the same index.
+     * It's split in chunks of at most CHUNK_SIZE subscriptions: a change copies the chunk changed
+     * and the array of chunks, so its cost is O(CHUNK_SIZE + size / CHUNK_SIZE), not O(size).
+     */
+    private static class Subscriptions {
+        private static final int CHUNK_BITS = 8;
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+        private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+        private static final Subscriptions EMPTY = new Subscriptions(new String[0][], new Subscribe[0][], 0);
+
+        /**
+         * Chunks of client ids and of subscriptions, all full except the last one.
+         */
+        private final String[][] mClientIDs;
+        private final Subscribe[][] mSubscribes;
+        private final int mSize;
+
+        private Subscriptions(String[][] clientIDs, Subscribe[][] subscribes, int size) {
+            mClientIDs = clientIDs;
+            mSubscribes = subscribes;
+            mSize = size;
+        }
+
+        private String getClientID(int index) {
+            return mClientIDs[index >>> CHUNK_BITS][index & CHUNK_MASK];
+        }
+
+        private Subscribe getSubscribe(int index) {
+            return mSubscribes[index >>> CHUNK_BITS][index & CHUNK_MASK];
+        }
+
+        /**
+         * @return A copy with the subscription at the index replaced.
+         */
+        private Subscriptions set(int index, String clientID, Subscribe subscribe) {
+            int chunk = index >>> CHUNK_BITS;
+            String[][] clientIDs = mClientIDs.clone();
+            Subscribe[][] subscribes = mSubscribes.clone();
+            clientIDs[chunk] = clientIDs[chunk].clone();
+            subscribes[chunk] = subscribes[chunk].clone();
+            clientIDs[chunk][index & CHUNK_MASK] = clientID;
+            subscribes[chunk][index & CHUNK_MASK] = subscribe;
+            return new Subscriptions(clientIDs, subscribes, mSize);
+        }
+
+        /**
+         * @return A copy with the subscription added at the end.
+         */
+        private Subscriptions add(String clientID, Subscribe subscribe) {
+            int chunk = mSize >>> CHUNK_BITS;
+            int offset = mSize & CHUNK_MASK;
+            String[][] clientIDs = Arrays.copyOf(mClientIDs, chunk + 1);
+            Subscribe[][] subscribes = Arrays.copyOf(mSubscribes, chunk + 1);
+            clientIDs[chunk] = (offset == 0) ? new String[1] : Arrays.copyOf(clientIDs[chunk], offset + 1);
+            subscribes[chunk] = (offset == 0) ? new Subscribe[1] : Arrays.copyOf(subscribes[chunk], offset + 1);
+            clientIDs[chunk][offset] = clientID;
+            subscribes[chunk][offset] = subscribe;
+            return new Subscriptions(clientIDs, subscribes, mSize + 1);
+        }
+
+        /**
+         * @return A copy without the subscription at the index, the last subscription is moved in its place.
+         */
+        private Subscriptions remove(int index) {
+            int last = mSize - 1;
+            Subscriptions subscriptions = (index == last) ? this : set(index, getClientID(last), getSubscribe(last));
+            int chunk = last >>> CHUNK_BITS;
+            int offset = last & CHUNK_MASK;
+            String[][] clientIDs = Arrays.copyOf(subscriptions.mClientIDs, (offset == 0) ? chunk : chunk + 1);
+            Subscribe[][] subscribes = Arrays.copyOf(subscriptions.mSubscribes, clientIDs.length);
+            if(offset > 0) {
+                clientIDs[chunk] = Arrays.copyOf(clientIDs[chunk], offset);
+                subscribes[chunk] = Arrays.copyOf(subscribes[chunk], offset);
+            }
+            return new Subscriptions(clientIDs, subscribes, last);
+        }
+
+        private void forEach(MatchVisitor visitor) {
+            for(int chunk = 0; chunk < mClientIDs.length; chunk++) {
+                String[] clientIDs = mClientIDs[chunk];
+                Subscribe[] subscribes = mSubscribes[chunk];
+                for(int i = 0; i < clientIDs.length; i++)
+                    visitor.onSubscription(clientIDs[i], subscribes[i]);
+            }
+        }
+    }
+
+    /**
+     * The subscriptions of a node or of a shared group: the current list, read by the match without lock,
+     * and the index of client ids, used only by the writer. The index is built when the list is no more small.
+     */
+    private static class SubscriptionSet {
+        private static final int INDEX_THRESHOLD = 16;
+
+        private volatile Subscriptions mSubscriptions = Subscriptions.EMPTY;
+        private Map<String, Integer> mIndex;
+
+        private Subscriptions get() {
+            return mSubscriptions;
+        }
+
+        private int size() {
+            return mSubscriptions.mSize;
+        }
+
+        private int indexOf(String clientID) {
+            if(mIndex != null) {
+                Integer index = mIndex.get(clientID);
+                return (index != null) ? index : -1;
+            }
+            Subscriptions subscriptions = mSubscriptions;
+            for(int i = 0; i < subscriptions.mSize; i++)
+                if(subscriptions.getClientID(i).equals(clientID))
+                    return i;
+            return -1;
+        }
+
+        /**
+         * Add the subscription of a client, or replace it.
+         * @return True if added, False if replaced.
+         */
+        private boolean put(String clientID, Subscribe subscribe) {
+            Subscriptions subscriptions = mSubscriptions;
+            int index = indexOf(clientID);
+            if(index >= 0) {
+                mSubscriptions = subscriptions.set(index, clientID, subscribe);
+                return false;
+            }
+            mSubscriptions = subscriptions.add(clientID, subscribe);
+            if(mIndex != null) {
+                mIndex.put(clientID, subscriptions.mSize);
+            } else if(subscriptions.mSize >= INDEX_THRESHOLD) {
+                mIndex = new HashMap<>();
+                for(int i = 0; i <= subscriptions.mSize; i++)
+                    mIndex.put(mSubscriptions.getClientID(i), i);
+            }
+            return true;
+        }
+
+        /**
+         * @return True if removed, False if the client has no subscription.
+         */
+        private boolean remove(String clientID) {
+            Subscriptions subscriptions = mSubscriptions;
+            int index = indexOf(clientID);
+            if(index < 0)
+                return false;
+            mSubscriptions = subscriptions.remove(index);
+            if(mIndex != null) {
+                mIndex.remove(clientID);
+                int last = subscriptions.mSize - 1;
+                if(index != last)
+                    mIndex.put(subscriptions.getClientID(last), index);
+                if(mSubscriptions.mSize == 0)
+                    mIndex = null;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Shared subscription, a message that match the filter is delivered to only one member of the group.
+     */
+    public static class SharedGroup {
+        private final String mName;
+        private final String mFilter;
+        private final SubscriptionSet mMembers = new SubscriptionSet();
+        /**
+         * Cursor of the round robin.
+         */
+        private final AtomicInteger mNext = new AtomicInteger(0);
+
+        private SharedGroup(String name, String filter) {
+            mName = name;
+            mFilter = filter;
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public String getFilter() {
+            return mFilter;
+        }
+
+        public int size() {
+            return mMembers.size();
+        }
+
+        /**
+         * Select the member that receives a message. The connected members are preferred,
+         * if all members are offline the message goes to the session of one of them.
+         * @param strategy How to balance the messages between the members.
+         * @param publisherID Client id of the publisher, used by the sticky strategy.
+         * @param inflight Number of messages not acknowledged by a member, negative if it's not connected.
+         * @param consumer Receive the member selected and its subscription.
+         */
+        public void select(SubscribeManager.SharedStrategy strategy, String publisherID, ToIntFunction<String> inflight,
+                           BiConsumer<String, Subscribe> consumer) {
+            Subscriptions members = mMembers.get();
+            int size = members.mSize;
+            if(size == 0)
+                return;
+            int selected = -1;
+            switch (strategy) {
+                case ROUND_ROBIN:
+                    // the turn of an offline member goes to the next one, so the connected members stay in turn
+                    for(int i = 0; i < size && selected < 0; i++) {
+                        int index = Math.floorMod(mNext.getAndIncrement(), size);
+                        if(inflight.applyAsInt(members.getClientID(index)) >= 0)
+                            selected = index;
+                    }
+                    break;
+                case RANDOM: {
+                    // reservoir sampling of one connected member
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    int online = 0;
+                    for(int i = 0; i < size; i++)
+                        if(inflight.applyAsInt(members.getClientID(i)) >= 0 && random.nextInt(++online) == 0)
+                            selected = i;
+                    break;
+                }
+                case STICKY: {
+                    // rendezvous hashing: a publisher keeps its member while the other members change
+                    int key = (publisherID != null) ? publisherID.hashCode() : 0;
+                    long best = -1;
+                    for(int i = 0; i < size; i++) {
+                        long weight = mix(key * 31 + members.getClientID(i).hashCode());
+                        if(weight > best && inflight.applyAsInt(members.getClientID(i)) >= 0) {
+                            best = weight;
+                            selected = i;
+                        }
+                    }
+                    break;
+                }
+                case LEAST_INFLIGHT: {
+                    // start from the cursor, so the members with the same load are in turn
+                    int start = Math.floorMod(mNext.getAndIncrement(), size);
+                    int best = Integer.MAX_VALUE;
+                    for(int i = 0; i < size && best > 0; i++) {
+                        int index = (start + i) % size;
+                        int load = inflight.applyAsInt(members.getClientID(index));
+                        if(load >= 0 && load < best) {
+                            best = load;
+                            selected = index;
+                        }
+                    }
+                    break;
+                }
+            }
+            // all members offline, the message goes to the session of one of them
+            if(selected < 0)
+                selected = Math.floorMod(mNext.getAndIncrement(), size);
+            consumer.accept(members.getClientID(selected), members.getSubscribe(selected));
+        }
+
+        private static long mix(int hash) {
+            long h = hash * 0x9E3779B97F4A7C15L;
+            return (h ^ (h >>> 32)) & Long.MAX_VALUE;
+        }
+    }
+
+    private static class Node {
+        private final Map<String, Node> mChildren = new ConcurrentHashMap<>();
+        /**
+         * Subscriptions with the filter that ends at this node.
+         */
+        private final SubscriptionSet mSubscriptions = new SubscriptionSet();
+        /**
+         * Shared subscriptions with the filter that ends at this node, by group name.
+         */
+        private final Map<String, SharedGroup> mShared = new ConcurrentHashMap<>();
+
+        private boolean isEmpty() {
+            return mChildren.isEmpty() && mSubscriptions.size() == 0 && mShared.isEmpty();
+        }
+
+        private void accept(MatchVisitor visitor) {
+            mSubscriptions.get().forEach(visitor);
+            if(!mShared.isEmpty())
+                mShared.values().forEach(visitor::onSharedGroup);
+        }
+    }
+
+    private final Node mRoot;
+    /**
+     * Nodes of the filters without wildcards, by filter. Only the subscriptions of these nodes are used.
+     */
+    private final Map<String, Node> mExact;
+    private volatile int mSize;
+
+    public SubscriptionTree() {
+        mRoot = new Node();
+        mExact = new ConcurrentHashMap<>();
+        mSize = 0;
+    }
+
+    /**
+     * Add a subscription, it replaces the subscription of same client with the same filter.
+     * @param clientID Client subscribed.
+     * @param subscribe Subscription, with a valid topic filter.
+     */
+    public void add(String clientID, Subscribe subscribe) {
+        String filter = TopicMatcher.getSharedFilter(subscribe.getTopic());
+        Node node;
+        if(isExact(filter)) {
+            node = mExact.computeIfAbsent(filter, f -> new Node());
+        } else {
+            node = mRoot;
+            for(String level : TopicMatcher.levels(filter))
+                node = node.mChildren.computeIfAbsent(level, l -> new Node());
+        }
+        if(TopicMatcher.isSharedSubscription(subscribe.getTopic())) {
+            SharedGroup group = node.mShared.computeIfAbsent(TopicMatcher.getSharedGroup(subscribe.getTopic()),
+                    name -> new SharedGroup(name, filter));
+            if(group.mMembers.put(clientID, subscribe))
+                mSize++;
+        } else if(node.mSubscriptions.put(clientID, subscribe)) {
+            mSize++;
+        }
+    }
+
+    /**
+     * Remove the subscription of a client, and the nodes left empty.
+     * @param clientID Client subscribed.
+     * @param topic Topic filter of subscription, or $share/{group}/{filter} for a shared subscription.
+     * @return True if the subscription is removed, False if not found.
+     */
+    public boolean remove(String clientID, String topic) {
+        boolean[] removed = new boolean[1];
+        String filter = TopicMatcher.getSharedFilter(topic);
+        String group = TopicMatcher.isSharedSubscription(topic) ? TopicMatcher.getSharedGroup(topic) : null;
+        if(filter == null)
+            return false;
+        if(isExact(filter)) {
+            Node node = mExact.get(filter);
+            if(node != null && remove(node, NO_LEVELS, 0, clientID, group, removed))
+                mExact.remove(filter);
+        } else {
+            remove(mRoot, TopicMatcher.levels(filter), 0, clientID, group, removed);
+        }
+        if(removed[0])
+            mSize--;
+        return removed[0];
+    }
+
+    /**
+     * @return True if the node is empty after the remove, so it can be removed by its parent.
+     */
+    private static boolean remove(Node node, String[] levels, int index, String clientID, String group, boolean[] removed) {
+        if(index == levels.length && group != null) {
+            SharedGroup sharedGroup = node.mShared.get(group);
+            if(sharedGroup != null && sharedGroup.mMembers.remove(clientID)) {
+                if(sharedGroup.size() == 0)
+                    node.mShared.remove(group);
+                removed[0] = true;
+            }
+        } else if(index == levels.length) {
+            if(node.mSubscriptions.remove(clientID))
+                removed[0] = true;
+        } else {
+            Node child = node.mChildren.get(levels[index]);
+            if(child != null && remove(child, levels, index + 1, clientID, group, removed))
+                node.mChildren.remove(levels[index]);
+        }
+        return node.isEmpty();
+    }
+
+    /**
+     * Find the subscriptions that match a topic. It's lock free.
+     * As required by MQTT, the topics that starts with $ are not matched by the wildcards of first level.
+     * @param topic Topic of a publish, without wildcards.
+     * @param visitor Receive each subscription and each shared group that match.
+     */
+    public void match(String topic, MatchVisitor visitor) {
+        match(topic, null, visitor);
+    }
+
+    /**
+     * Find the subscriptions that match a topic already split in levels, see {@link TopicMatcher#levels(String)}.
+     * @param levels Levels of the topic, null to split it only if the walk of the tree is needed.
+     */
+    public void match(String topic, String[] levels, MatchVisitor visitor) {
+        Node exact = mExact.get(topic);
+        if(exact != null)
+            exact.accept(visitor);
+        if(!mRoot.mChildren.isEmpty())
+            match(mRoot, (levels != null) ? levels : TopicMatcher.levels(topic), 0, !topic.startsWith("$"), visitor);
+    }
+
+    private static void match(Node node, String[] levels, int index, boolean wildcards, MatchVisitor visitor) {
+        if(wildcards) {
+            // # match also the parent level, "sport/#" match "sport"
+            Node multiLevel = node.mChildren.get(MULTI_LEVEL);
+            if(multiLevel != null)
+                multiLevel.accept(visitor);
+        }
+        if(index == levels.length) {
+            node.accept(visitor);
+            return;
+        }
+        if(wildcards) {
+            Node singleLevel = node.mChildren.get(SINGLE_LEVEL);
+            if(singleLevel != null)
+                match(singleLevel, levels, index + 1, true, visitor);
+        }
+        Node child = node.mChildren.get(levels[index]);
+        if(child != null)
+            match(child, levels, index + 1, true, visitor);
+    }
+
+    /**
+     * @return Number of subscriptions.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return True if the filter has no wildcards, so it match only the same topic.
+     */
+    private static boolean isExact(String filter) {
+        return filter.indexOf('+') < 0 && filter.indexOf('#') < 0;
+    }
+}
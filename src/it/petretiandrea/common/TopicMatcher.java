@@ -7,21 +7,52 @@ import java.io.UnsupportedEncodingException;
 
 public class TopicMatcher {
 
+    /**
+     * Prefisso delle sottoscrizioni condivise: $share/{gruppo}/{filtro}
+     */
+    public static final String SHARED_PREFIX = "$share/";
+
     /**
      * È valido se non contiene i caratteri + o #, e la lunghezza non supera 65535 bytes
      * @param pubTopic Topic da pubblicare
      * @return True se valido, False se invalido
      */
     public static boolean isValidTopicPublish(String pubTopic) {
+        // un solo passaggio sui caratteri, la lunghezza in bytes UTF-8 è calcolata senza codificare il topic
+        int bytes = 0;
+        for(int i = 0; i < pubTopic.length(); i++) {
+            char c = pubTopic.charAt(i);
+            if(c == '+' || c == '#')
+                return false;
+            if(c < 0x80)
+                bytes += 1;
+            else if(c < 0x800 || Character.isSurrogate(c)) // una coppia di surrogati è 4 bytes
+                bytes += 2;
+            else
+                bytes += 3;
+        }
+        return bytes <= 65535;
+    }
 
-        try {
-            if(pubTopic.getBytes(Utils.CHARSET).length <= 65535) {
-                return !pubTopic.contains("+") && !pubTopic.contains("#");
-            }
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+    /**
+     * Divide un topic nei suoi livelli con un solo passaggio, i livelli vuoti sono mantenuti: "a//b/" ha 4 livelli.
+     * Una publish è divisa una volta sola, i livelli sono usati sia dal match delle sottoscrizioni che dai retained.
+     * @param topic Topic o filtro da dividere
+     * @return I livelli del topic
+     */
+    public static String[] levels(String topic) {
+        int count = 1;
+        for(int i = topic.indexOf('/'); i >= 0; i = topic.indexOf('/', i + 1))
+            count++;
+        String[] levels = new String[count];
+        int start = 0;
+        for(int i = 0; i < count - 1; i++) {
+            int end = topic.indexOf('/', start);
+            levels[i] = topic.substring(start, end);
+            start = end + 1;
         }
-        return false;
+        levels[count - 1] = topic.substring(start);
+        return levels;
     }
 
     /**
@@ -36,6 +67,14 @@ public class TopicMatcher {
      */
     public static boolean isValidSubscribeTopic(String subTopic) {
 
+        if(isSharedSubscription(subTopic)) {
+            // il nome del gruppo non può essere vuoto o contenere wildcard, il filtro deve essere valido
+            String group = getSharedGroup(subTopic);
+            String filter = getSharedFilter(subTopic);
+            return group != null && !group.isEmpty() && !group.contains("+") && !group.contains("#")
+                    && filter != null && !filter.isEmpty() && isValidSubscribeTopic(filter);
+        }
+
         try {
             if(subTopic.getBytes(Utils.CHARSET).length <= 65535) {
 
@@ -55,37 +94,68 @@ public class TopicMatcher {
         return false;
     }
 
-    public static boolean matchTopic(String filter, String topic) {
+    /**
+     * @return True se è una sottoscrizione condivisa, $share/{gruppo}/{filtro}
+     */
+    public static boolean isSharedSubscription(String subTopic) {
+        return subTopic.startsWith(SHARED_PREFIX);
+    }
+
+    /**
+     * @return Il nome del gruppo di una sottoscrizione condivisa, null se manca il filtro.
+     */
+    public static String getSharedGroup(String subTopic) {
+        int end = subTopic.indexOf('/', SHARED_PREFIX.length());
+        return (end < 0) ? null : subTopic.substring(SHARED_PREFIX.length(), end);
+    }
 
-        int filterStart, topicStart;
-        int filterEnd, topicEnd;
+    /**
+     * @return Il filtro di una sottoscrizione condivisa, il topic stesso per una sottoscrizione normale.
+     */
+    public static String getSharedFilter(String subTopic) {
+        if(!isSharedSubscription(subTopic))
+            return subTopic;
+        int end = subTopic.indexOf('/', SHARED_PREFIX.length());
+        return (end < 0) ? null : subTopic.substring(end + 1);
+    }
 
-        filterStart = topicStart = 0;
-        filterEnd = filter.length();
-        topicEnd = topic.length();
+    /**
+     * Controlla se il topic di una publish corrisponde al filtro di una sottoscrizione, livello per livello.
+     * Come richiesto da MQTT, i topic che iniziano con $ non corrispondono alle wildcard del primo livello.
+     * Example:
+     *      "sport/#" match "sport" e "sport/tennis/player1"
+     *      "sport/+" match "sport/" ma non "sport/tennis/player1"
+     * @param filter Topic di sottoscrizione, anche con wildcard
+     * @param topic Topic della publish
+     * @return True se corrisponde, False altrimenti.
+     */
+    public static boolean matchTopic(String filter, String topic) {
+        if(filter.equals(topic))
+            return true;
+        if(topic.startsWith("$") && (filter.startsWith("+") || filter.startsWith("#")))
+            return false;
 
-        if(!filter.equals(topic)) {
-            while(filterStart < filterEnd && topicStart < topicEnd) {
-                // fix per casi in cui si ha ciao/#
-                if(topicStart == filterEnd - 3 && filter.charAt(topicStart + 1) == '/' && filter.charAt(topicStart + 2) == '#') { // check for /#
-                    topicStart = topicEnd;
-                    filterStart = filterEnd;
-                    break;
-                }
-                if(topic.charAt(topicStart) == '/' && filter.charAt(filterStart) != '/')
-                    break;
-                if (filter.charAt(filterStart) != '+' && filter.charAt(filterStart) != '#' &&
-                        filter.charAt(filterStart) != topic.charAt(topicStart))
-                    break;
-                if(filter.charAt(filterStart) == '+') {
-                    // scorre il topic fino a raggiungere la fine o un separatore
-                    for(int next = topicStart + 1; next < topicEnd && topic.charAt(next) != '/'; ++topicStart, next = topicStart + 1);
-                } else if(filter.charAt(filterStart) == '#')
-                    topicStart = topicEnd - 1;
-                filterStart++;
-                topicStart++;
-            }
-            return (topicStart == topicEnd) && (filterStart == filterEnd);
-        } else return true;
+        int filterStart = 0;
+        int topicStart = 0;
+        while (filterStart <= filter.length()) {
+            int filterEnd = filter.indexOf('/', filterStart);
+            if(filterEnd < 0)
+                filterEnd = filter.length();
+            // # corrisponde a tutti i livelli rimanenti, anche al livello padre
+            if(filter.startsWith("#", filterStart) && filterEnd == filterStart + 1)
+                return true;
+            if(topicStart > topic.length())
+                return false;
+            int topicEnd = topic.indexOf('/', topicStart);
+            if(topicEnd < 0)
+                topicEnd = topic.length();
+            boolean singleLevel = filter.startsWith("+", filterStart) && filterEnd == filterStart + 1;
+            if(!singleLevel && (filterEnd - filterStart != topicEnd - topicStart
+                    || !filter.regionMatches(filterStart, topic, topicStart, filterEnd - filterStart)))
+                return false;
+            filterStart = filterEnd + 1;
+            topicStart = topicEnd + 1;
+        }
+        return topicStart > topic.length();
     }
 }
@@ -0,0 +1,112 @@
+package it.petretiandrea.common;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counting filter over the first levels of the subscribed filters, for a fast negative check of a published topic.
+ * Each filter is counted once, in the table of the levels before its first wildcard (at most {@link #DEPTH}),
+ * by the hash of those levels. A topic can match a subscription only if the counter of one of its prefixes is not 0,
+ * so if all counters are 0 nobody is subscribed. A collision of hash gives a false positive, never a false negative.
+ * The check is lock free and does not allocate, it reads each char of the first levels of the topic only once.
+ * The writers (add and remove) must be serialized by the caller.
+ */
+public class TopicPrefixFilter {
+
+    /**
+     * Max number of levels of the prefixes counted.
+     */
+    public static final int DEPTH = 2;
+
+    private static final int TABLE_BITS = 16;
+    private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+
+    /**
+     * Counters for each depth, by hash of the prefix with that number of levels.
+     */
+    private final AtomicIntegerArray[] mTables;
+    /**
+     * Filters that start with a wildcard, that match all topics except the ones that start with $.
+     */
+    private final AtomicInteger mWildcards;
+
+    public TopicPrefixFilter() {
+        mTables = new AtomicIntegerArray[DEPTH];
+        for(int i = 0; i < DEPTH; i++)
+            mTables[i] = new AtomicIntegerArray(1 << TABLE_BITS);
+        mWildcards = new AtomicInteger(0);
+    }
+
+    /**
+     * Count a subscription.
+     * @param filter Topic filter subscribed.
+     */
+    public void add(String filter) {
+        update(filter, 1);
+    }
+
+    /**
+     * Remove a subscription counted with {@link #add(String)}.
+     * @param filter Topic filter unsubscribed.
+     */
+    public void remove(String filter) {
+        update(filter, -1);
+    }
+
+    private void update(String filter, int delta) {
+        int depth = 0;
+        int hash = 0;
+        int prefixHash = 0;
+        boolean wildcard = false;
+        for(int i = 0; i < filter.length(); i++) {
+            char c = filter.charAt(i);
+            if(c == '+' || c == '#') {
+                wildcard = true;
+                break;
+            }
+            if(c == '/') {
+                prefixHash = hash;
+                if(++depth == DEPTH)
+                    break;
+            }
+            hash = 31 * hash + c;
+        }
+        // a filter without wildcards shorter than DEPTH levels is counted with all its levels
+        if(!wildcard && depth < DEPTH) {
+            prefixHash = hash;
+            depth++;
+        }
+        if(depth == 0)
+            mWildcards.addAndGet(delta);
+        else
+            mTables[depth - 1].addAndGet(index(prefixHash), delta);
+    }
+
+    /**
+     * Check if a topic can be matched by a subscription.
+     * @param topic Topic of publish.
+     * @return False if no subscription match the topic, True if a subscription can match it.
+     */
+    public boolean mightMatch(String topic) {
+        if(mWildcards.get() > 0 && !topic.startsWith("$"))
+            return true;
+        int depth = 0;
+        int hash = 0;
+        for(int i = 0; i < topic.length(); i++) {
+            char c = topic.charAt(i);
+            if(c == '/') {
+                if(mTables[depth].get(index(hash)) > 0)
+                    return true;
+                if(++depth == DEPTH)
+                    return false;
+            }
+            hash = 31 * hash + c;
+        }
+        return mTables[depth].get(index(hash)) > 0;
+    }
+
+    private static int index(int hash) {
+        // spread the bits of hash, the similar prefixes differ only in the last bits
+        return (hash * 0x9E3779B9) >>> (32 - TABLE_BITS) & TABLE_MASK;
+    }
+}
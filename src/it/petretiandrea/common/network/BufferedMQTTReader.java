@@ -1,47 +1,51 @@
 package it.petretiandrea.common.network;
 
 import it.petretiandrea.core.exception.MQTTParseException;
-import it.petretiandrea.utils.Utils;
 import it.petretiandrea.core.packet.base.MQTTPacket;
 
-import java.io.*;
-import java.util.Arrays;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Reader of MQTT packets from a blocking stream. A packet can arrive with many short reads,
+ * the partial frame is kept by the decoder until it is complete.
+ */
 public class BufferedMQTTReader {
 
-    private BufferedInputStream mBufferedInputStream;
+    private InputStream mInputStream;
+    private MQTTFrameDecoder mDecoder;
+
+    /**
+     * Lock instead of synchronized, a virtual thread blocked inside a monitor pins its carrier thread.
+     */
+    private final ReentrantLock mLock = new ReentrantLock();
 
     public BufferedMQTTReader(InputStream in) {
-        mBufferedInputStream = new BufferedInputStream(in);
+        this(in, MQTTFrameDecoder.DEFAULT_BUFFER_SIZE);
     }
 
     public BufferedMQTTReader(InputStream in, int size) {
-        mBufferedInputStream = new BufferedInputStream(in, size);
+        mInputStream = in;
+        mDecoder = new MQTTFrameDecoder(size);
     }
 
-    public synchronized MQTTPacket nextMQTTPacket() throws IOException, MQTTParseException {
-        byte fixedHeader = (byte) mBufferedInputStream.read();
-        if(fixedHeader != -1) // end of stream reached
-        {
-            Utils.getType(fixedHeader);
-
-            int multiplier = 1;
-            int length = 0;
-            byte tmp;
-            do {
-                tmp = (byte) mBufferedInputStream.read();
-                length += (tmp & 127) * multiplier;
-                multiplier *= 128;
-                if(multiplier > 128*128*128)
-                    throw new MQTTParseException("Malformed Remaining Length", MQTTParseException.Reason.INVALID_MQTT_PACKET);
-            } while ((tmp & 128) != 0);
-
-            // read all packet with length
-            byte[] packet = new byte[length];
-            if(mBufferedInputStream.read(packet, 0, packet.length) >= 0) {
-                return MQTTPacket.parseBody(fixedHeader, packet);
+    /**
+     * Read the next packet, blocking until it is complete. If the read timeout of socket expires,
+     * the bytes already received are kept for the next call.
+     * @return The packet read, null if the end of stream is reached.
+     */
+    public MQTTPacket nextMQTTPacket() throws IOException, MQTTParseException {
+        mLock.lock();
+        try {
+            MQTTPacket packet;
+            while ((packet = mDecoder.decode()) == null) {
+                if(mDecoder.readFrom(mInputStream) < 0)
+                    return null;
             }
+            return packet;
+        } finally {
+            mLock.unlock();
         }
-        return null;
     }
 }
@@ -0,0 +1,192 @@
+package it.petretiandrea.common.network;
+
+import it.petretiandrea.utils.CustomLogger;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Single thread that multiplex many channels through a {@link Selector}.
+ * All the IO operation and the callbacks of the registered {@link Handler} are executed on this thread.
+ */
+public class EventLoop implements Runnable {
+
+    /**
+     * Interval between two ticks, used for keep alive checks.
+     */
+    private static final long TICK_INTERVAL = 500;
+
+    /**
+     * Handler of a channel registered on the event loop.
+     */
+    public interface Handler {
+        void onSelect(SelectionKey key);
+        void onTick(long now);
+    }
+
+    private final Selector mSelector;
+    private final Thread mThread;
+    private final Queue<Runnable> mTasks;
+    private final PriorityQueue<ScheduledTask> mScheduledTasks;
+    private final AtomicBoolean mWakeUp;
+    private volatile boolean mRunning;
+    private long mLastTick;
+
+    public EventLoop(String name) throws IOException {
+        mSelector = Selector.open();
+        mTasks = new ConcurrentLinkedQueue<>();
+        mScheduledTasks = new PriorityQueue<>();
+        mWakeUp = new AtomicBoolean(false);
+        mThread = new Thread(this, name);
+        mThread.setDaemon(true);
+    }
+
+    public void start() {
+        mRunning = true;
+        mThread.start();
+    }
+
+    public void shutdown() {
+        mRunning = false;
+        mSelector.wakeup();
+    }
+
+    /**
+     * @return True if the caller is running on this event loop thread.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * Enqueue a task to be executed on the event loop thread.
+     * @param task The task.
+     */
+    public void execute(Runnable task) {
+        mTasks.add(task);
+        if(!inEventLoop() && mWakeUp.compareAndSet(false, true))
+            mSelector.wakeup();
+    }
+
+    /**
+     * Execute a task on the event loop thread, after a delay.
+     * @param task The task.
+     * @param delayMillis Delay in milliseconds.
+     */
+    public void schedule(Runnable task, long delayMillis) {
+        ScheduledTask scheduledTask = new ScheduledTask(task, System.currentTimeMillis() + delayMillis);
+        execute(() -> mScheduledTasks.add(scheduledTask));
+    }
+
+    Selector selector() {
+        return mSelector;
+    }
+
+    /**
+     * Register a channel on the selector of this event loop.
+     * @param channel Channel, need to be in non-blocking mode.
+     * @param ops Interest operations.
+     * @param handler Handler for the events of the channel.
+     */
+    public void register(SelectableChannel channel, int ops, Handler handler) {
+        execute(() -> {
+            try {
+                channel.register(mSelector, ops, handler);
+            } catch (ClosedChannelException e) {
+                CustomLogger.LOGGER.severe("EventLoop: " + e);
+            }
+        });
+    }
+
+    @Override
+    public void run() {
+        mLastTick = System.currentTimeMillis();
+        while (mRunning) {
+            try {
+                mSelector.select(nextTimeout());
+                mWakeUp.set(false);
+
+                Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if(key.isValid())
+                        ((Handler) key.attachment()).onSelect(key);
+                }
+
+                runTasks();
+                runScheduledTasks();
+                tick();
+            } catch (IOException e) {
+                CustomLogger.LOGGER.severe("EventLoop: " + e);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            for (SelectionKey key : mSelector.keys())
+                key.channel().close();
+            mSelector.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private long nextTimeout() {
+        if(!mTasks.isEmpty())
+            return 1;
+        long now = System.currentTimeMillis();
+        long timeout = Math.max(1, TICK_INTERVAL - (now - mLastTick));
+        ScheduledTask next = mScheduledTasks.peek();
+        if(next != null)
+            timeout = Math.max(1, Math.min(timeout, next.mDeadline - now));
+        return timeout;
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = mTasks.poll()) != null)
+            task.run();
+    }
+
+    private void runScheduledTasks() {
+        long now = System.currentTimeMillis();
+        while (!mScheduledTasks.isEmpty() && mScheduledTasks.peek().mDeadline <= now)
+            mScheduledTasks.poll().mTask.run();
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        if(now - mLastTick >= TICK_INTERVAL) {
+            mLastTick = now;
+            for (SelectionKey key : mSelector.keys()) {
+                if(key.isValid())
+                    ((Handler) key.attachment()).onTick(now);
+            }
+        }
+    }
+
+    private static class ScheduledTask implements Comparable<ScheduledTask> {
+
+        private final Runnable mTask;
+        private final long mDeadline;
+
+        ScheduledTask(Runnable task, long deadline) {
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public int compareTo(ScheduledTask o) {
+            return Long.compare(mDeadline, o.mDeadline);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package it.petretiandrea.common.network;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fixed set of {@link EventLoop}, the channels are assigned in round robin.
+ */
+public class EventLoopGroup {
+
+    private final EventLoop[] mEventLoops;
+    private final AtomicInteger mNext;
+
+    public EventLoopGroup(int size, String name) throws IOException {
+        mEventLoops = new EventLoop[size];
+        mNext = new AtomicInteger(0);
+        for(int i = 0; i < size; i++) {
+            mEventLoops[i] = new EventLoop(name + "-" + i);
+            mEventLoops[i].start();
+        }
+    }
+
+    /**
+     * @return The next event loop, in round robin.
+     */
+    public EventLoop next() {
+        return mEventLoops[Math.abs(mNext.getAndIncrement() % mEventLoops.length)];
+    }
+
+    public int size() {
+        return mEventLoops.length;
+    }
+
+    public void shutdown() {
+        for (EventLoop eventLoop : mEventLoops)
+            eventLoop.shutdown();
+    }
+}
@@ -0,0 +1,151 @@
+package it.petretiandrea.common.network;
+
+import it.petretiandrea.core.exception.MQTTParseException;
+import it.petretiandrea.core.packet.base.MQTTPacket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder of MQTT frames. The bytes received are accumulated in a reusable buffer,
+ * across many reads, until a frame is complete. The fixed header and the remaining length are parsed in place,
+ * and the body is passed to the packet parser as a slice of the buffer, without copy.
+ * Not thread safe.
+ */
+public class MQTTFrameDecoder {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * Max value of remaining length, encoded with 4 bytes.
+     */
+    private static final int MAX_REMAINING_LENGTH = 268435455;
+
+    /**
+     * Buffer in write mode, the data not decoded are between mReadIndex and the position.
+     */
+    private ByteBuffer mBuffer;
+    private int mReadIndex;
+
+    /**
+     * Size of the incomplete frame at the start of data, 0 if unknown.
+     */
+    private int mPendingFrameSize;
+
+    private final int mInitialCapacity;
+
+    public MQTTFrameDecoder() {
+        this(DEFAULT_BUFFER_SIZE);
+    }
+
+    public MQTTFrameDecoder(int initialCapacity) {
+        mInitialCapacity = initialCapacity;
+        mBuffer = ByteBuffer.allocate(initialCapacity);
+        mReadIndex = 0;
+        mPendingFrameSize = 0;
+    }
+
+    /**
+     * Buffer where write the bytes received. The buffer has free space for at least one byte,
+     * or for the whole incomplete frame. The buffer must be written only from its position to its limit,
+     * and it is valid until the next call of this decoder.
+     * @return The buffer in write mode.
+     */
+    public ByteBuffer writableBuffer() {
+        int required = Math.max(mPendingFrameSize, (mBuffer.position() - mReadIndex) + 1);
+        if(mBuffer.capacity() - mReadIndex < required || !mBuffer.hasRemaining()) {
+            ByteBuffer buffer = (required > mBuffer.capacity()) ? ByteBuffer.allocate(Math.max(required, mBuffer.capacity() * 2)) : mBuffer;
+            // move the data not decoded at start of buffer
+            ByteBuffer data = mBuffer.duplicate();
+            data.limit(mBuffer.position());
+            data.position(mReadIndex);
+            if(buffer == mBuffer) {
+                mBuffer.position(mReadIndex);
+                mBuffer.limit(data.limit());
+                mBuffer.compact();
+            } else {
+                buffer.put(data);
+                mBuffer = buffer;
+            }
+            mReadIndex = 0;
+        }
+        return mBuffer;
+    }
+
+    /**
+     * Read from a stream into the buffer, blocking until some bytes are available.
+     * @return Number of bytes read, -1 if the end of stream is reached.
+     */
+    public int readFrom(InputStream in) throws IOException {
+        ByteBuffer buffer = writableBuffer();
+        int read = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if(read > 0)
+            buffer.position(buffer.position() + read);
+        return read;
+    }
+
+    /**
+     * Decode the next packet, if a complete frame is available.
+     * @return The packet decoded, null if more bytes are needed.
+     * @throws MQTTParseException If the frame is not a valid MQTT packet.
+     */
+    public MQTTPacket decode() throws MQTTParseException, UnsupportedEncodingException {
+        int available = mBuffer.position() - mReadIndex;
+        if(available < 2)
+            return null;
+
+        byte fixedHeader = mBuffer.get(mReadIndex);
+        int multiplier = 1;
+        int length = 0;
+        int index = mReadIndex + 1;
+        byte tmp;
+        do {
+            if(index - mReadIndex > 4)
+                throw new MQTTParseException("Malformed Remaining Length", MQTTParseException.Reason.INVALID_MQTT_PACKET);
+            if(index >= mBuffer.position())
+                return null;
+            tmp = mBuffer.get(index++);
+            length += (tmp & 127) * multiplier;
+            multiplier *= 128;
+        } while ((tmp & 128) != 0);
+
+        int frameSize = (index - mReadIndex) + length;
+        if(length > MAX_REMAINING_LENGTH || frameSize < 0)
+            throw new MQTTParseException("Malformed Remaining Length", MQTTParseException.Reason.INVALID_MQTT_PACKET);
+        if(available < frameSize) {
+            mPendingFrameSize = frameSize;
+            return null;
+        }
+
+        ByteBuffer body = mBuffer.duplicate();
+        body.limit(index + length);
+        body.position(index);
+        body = body.slice();
+
+        mPendingFrameSize = 0;
+        mReadIndex += frameSize;
+        if(mReadIndex == mBuffer.position())
+            reset();
+
+        try {
+            return MQTTPacket.parseBody(fixedHeader, body);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new MQTTParseException("Body shorter than expected", MQTTParseException.Reason.INVALID_MQTT_PACKET);
+        }
+    }
+
+    /**
+     * All data are decoded, restart from the beginning of buffer.
+     * A buffer grown for a large frame is released.
+     */
+    private void reset() {
+        mReadIndex = 0;
+        if(mBuffer.capacity() > mInitialCapacity * 8)
+            mBuffer = ByteBuffer.allocate(mInitialCapacity);
+        else
+            mBuffer.clear();
+    }
+}
@@ -0,0 +1,126 @@
+package it.petretiandrea.common.network;
+
+import it.petretiandrea.core.packet.Publish;
+import it.petretiandrea.core.packet.base.MQTTPacket;
+import it.petretiandrea.utils.BufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Encode the packets into buffers taken from a pool shared by all transports.
+ * The size of packet is computed before the encode, so the buffer is never resized.
+ */
+public class PacketEncoder {
+
+    /**
+     * Free encode buffers, at most 32 MB retained.
+     */
+    private static final BufferPool BUFFERS = new BufferPool(false, 32L << 20);
+
+    /**
+     * A packet encoded for a gathering write: a pooled buffer, followed for a shared publish by a read only view
+     * of its payload, the same buffer for all receivers. It must be released after the write.
+     */
+    public static final class Frame {
+        private final ByteBuffer mHead;
+        private final ByteBuffer mPayload;
+        private final Publish mOwner;
+
+        private Frame(ByteBuffer head, ByteBuffer payload, Publish owner) {
+            mHead = head;
+            mPayload = payload;
+            mOwner = owner;
+        }
+
+        /**
+         * Put the buffers of frame in an array of buffers, for a gathering write.
+         * @return Number of buffers put, 1 or 2.
+         */
+        public int gather(ByteBuffer[] buffers, int offset) {
+            buffers[offset] = mHead;
+            if(mPayload == null)
+                return 1;
+            buffers[offset + 1] = mPayload;
+            return 2;
+        }
+
+        public int remaining() {
+            return mHead.remaining() + ((mPayload != null) ? mPayload.remaining() : 0);
+        }
+
+        public boolean hasRemaining() {
+            return mHead.hasRemaining() || (mPayload != null && mPayload.hasRemaining());
+        }
+
+        /**
+         * Give back the head to the pool, and the reference of the payload.
+         */
+        public void release() {
+            BUFFERS.release(mHead);
+            if(mOwner != null)
+                mOwner.release();
+        }
+    }
+
+    /**
+     * Encode a publish once for many receivers, with the payload in a pooled buffer. See {@link Publish#share(BufferPool)}.
+     */
+    public static Publish share(Publish publish) {
+        return publish.share(BUFFERS);
+    }
+
+    /**
+     * Encode a packet into a pooled buffer.
+     * @return The buffer in read mode, it must be released after the write.
+     */
+    public static ByteBuffer encode(MQTTPacket packet) {
+        ByteBuffer buffer = BUFFERS.acquire(packet.encodedLength());
+        packet.encode(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Encode a packet for a gathering write: the payload of a shared publish is not copied.
+     * @return The frame in read mode, it must be released after the write.
+     */
+    public static Frame encodeFrame(MQTTPacket packet) {
+        if(packet instanceof Publish) {
+            Publish publish = (Publish) packet;
+            ByteBuffer payload = publish.retainPayload();
+            if(payload != null) {
+                ByteBuffer head = BUFFERS.acquire(publish.encodedLength() - payload.remaining());
+                publish.encodeHead(head);
+                head.flip();
+                return new Frame(head, payload, publish);
+            }
+        }
+        return new Frame(encode(packet), null, null);
+    }
+
+    /**
+     * Encode many packets one after the other into a single pooled buffer.
+     * @param packets Packets to encode.
+     * @param from Index of first packet, inclusive.
+     * @param to Index of last packet, exclusive.
+     * @return The buffer in read mode, it must be released after the write.
+     */
+    public static ByteBuffer encode(List<MQTTPacket> packets, int from, int to) {
+        int length = 0;
+        for(int i = from; i < to; i++)
+            length += packets.get(i).encodedLength();
+        ByteBuffer buffer = BUFFERS.acquire(length);
+        for(int i = from; i < to; i++)
+            packets.get(i).encode(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Give back to the pool a buffer returned by {@link #encode(MQTTPacket)}.
+     */
+    public static void release(ByteBuffer buffer) {
+        BUFFERS.release(buffer);
+    }
+}
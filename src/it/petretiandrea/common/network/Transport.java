@@ -5,6 +5,7 @@ import it.petretiandrea.core.packet.base.MQTTPacket;
 
 import java.io.IOException;
 import java.net.SocketAddress;
+import java.util.List;
 
 public interface Transport {
 
@@ -16,6 +17,35 @@ public interface Transport {
     void writePacket(MQTTPacket packet, int timeout) throws IOException;
     void writePacket(MQTTPacket packet) throws IOException;
 
+    /**
+     * Write many packets, in order. With a {@link WriteBatch} the packets are coalesced in a few writes on socket.
+     * @param packets Packets to be written.
+     */
+    default void writePackets(List<MQTTPacket> packets) throws IOException {
+        for(MQTTPacket packet : packets)
+            writePacket(packet);
+    }
+
+    /**
+     * Enable the write coalescing, by default each packet is written and flushed alone.
+     * @param writeBatch Limits of a batch, null for disable it.
+     */
+    default void setWriteBatch(WriteBatch writeBatch) { }
+
+    /**
+     * @return Number of packets accepted for write but not yet written on socket, 0 if the writes are blocking.
+     */
+    default int getPendingWrites() {
+        return 0;
+    }
+
+    /**
+     * Set the listener called when all packets accepted are written on socket, by a non blocking transport.
+     * A blocking transport writes the packets before return, so it never calls it.
+     * @param listener Listener, null for remove it.
+     */
+    default void setDrainListener(Runnable listener) { }
+
     void close() throws IOException;
 
     boolean isConnected();
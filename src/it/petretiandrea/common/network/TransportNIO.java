@@ -0,0 +1,476 @@
+package it.petretiandrea.common.network;
+
+import it.petretiandrea.core.exception.MQTTParseException;
+import it.petretiandrea.core.packet.base.MQTTPacket;
+import it.petretiandrea.utils.CustomLogger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non blocking transport over a {@link SocketChannel}, the IO is performed by an {@link EventLoop}.
+ * The packets read can be consumed with the blocking {@link #readPacket(int)}, or pushed to a {@link PacketListener}.
+ */
+public class TransportNIO implements Transport, EventLoop.Handler {
+
+    private static final Object END_OF_STREAM = new Object();
+
+    /**
+     * Listener for the packets read from the event loop.
+     * All methods are called on the event loop thread.
+     */
+    public interface PacketListener {
+        void onPacketReceived(MQTTPacket packet);
+        void onTick(long now);
+        void onTransportClosed(Throwable cause);
+    }
+
+    private final EventLoop mEventLoop;
+    private SocketChannel mChannel;
+    private SelectionKey mKey;
+
+    /**
+     * Decoder of the frames received, keeps the partial frame between two reads.
+     */
+    private final MQTTFrameDecoder mDecoder;
+    private final Queue<PacketEncoder.Frame> mWriteQueue;
+
+    /**
+     * Limits of the gathering writes, null if each packet is written alone.
+     */
+    private WriteBatch mWriteBatch;
+    /**
+     * Buffers of the current gathering write, up to two for each packet: the head and the payload shared.
+     */
+    private ByteBuffer[] mGather;
+    /**
+     * Packets accepted for write, until written on socket.
+     */
+    private final AtomicInteger mPendingWrites;
+    private volatile Runnable mDrainListener;
+
+    /**
+     * Packets read and not consumed, used until a listener is set.
+     */
+    private final BlockingQueue<Object> mIncoming;
+    private PacketListener mPacketListener;
+
+    private volatile boolean mClosed;
+    private boolean mClosing;
+    private Throwable mCloseCause;
+
+    public TransportNIO(EventLoop eventLoop) {
+        mEventLoop = eventLoop;
+        mDecoder = new MQTTFrameDecoder();
+        mWriteQueue = new ArrayDeque<>();
+        mGather = new ByteBuffer[2];
+        mPendingWrites = new AtomicInteger(0);
+        mIncoming = new LinkedBlockingQueue<>();
+        mClosed = false;
+    }
+
+    public TransportNIO(SocketChannel channel, EventLoop eventLoop) {
+        this(eventLoop);
+        attach(channel);
+    }
+
+    @Override
+    public void connect(String hostname, int port) throws IOException {
+        if(mChannel == null)
+            attach(SocketChannel.open(new InetSocketAddress(hostname, port)));
+    }
+
+    /**
+     * Attach a connected channel, and register it on the event loop.
+     * The subclasses that need to be initialized before the registration call it at the end of constructor.
+     */
+    protected void attach(SocketChannel channel) {
+        mChannel = channel;
+        try {
+            mChannel.configureBlocking(false);
+            mChannel.socket().setTcpNoDelay(true);
+            mEventLoop.execute(() -> {
+                try {
+                    mKey = mChannel.register(mEventLoop.selector(), SelectionKey.OP_READ, this);
+                    onRegistered();
+                    flush();
+                } catch (IOException e) {
+                    closeNow(e);
+                }
+            });
+        } catch (IOException e) {
+            closeNow(e);
+        }
+    }
+
+    protected SocketChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Called on the event loop after the registration of the channel.
+     */
+    protected void onRegistered() throws IOException { }
+
+    /**
+     * Read the incoming data from the channel.
+     * @param dst Buffer where put the data.
+     * @return Number of bytes read, 0 if no more data are available now, -1 if end of stream is reached.
+     */
+    protected int readChannel(ByteBuffer dst) throws IOException {
+        return mChannel.read(dst);
+    }
+
+    /**
+     * Write the data on channel, with a single gathering write.
+     * @param srcs Data to be written.
+     * @param offset Index of first buffer to write.
+     * @param length Number of buffers to write.
+     * @return True if all data are written, False if need to wait the channel is writable.
+     */
+    protected boolean writeChannel(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        mChannel.write(srcs, offset, length);
+        return !srcs[offset + length - 1].hasRemaining();
+    }
+
+    /**
+     * @return True if the data of application can be written, e.g. the handshake is completed.
+     */
+    protected boolean isReadyForWrite() {
+        return true;
+    }
+
+    /**
+     * @return True if the transport holds data to write after the packets of the queue are written,
+     * e.g. encrypted data not accepted by the channel.
+     */
+    protected boolean hasPendingOutput() {
+        return false;
+    }
+
+    /**
+     * Called on the event loop, before the close of channel.
+     */
+    protected void onClose() { }
+
+    /**
+     * Enable or disable the interest for the write events.
+     */
+    protected void setWriteInterest(boolean enabled) {
+        setInterest(SelectionKey.OP_WRITE, enabled);
+    }
+
+    /**
+     * Enable or disable the interest for the read events, e.g. while the data can't be consumed.
+     */
+    protected void setReadInterest(boolean enabled) {
+        setInterest(SelectionKey.OP_READ, enabled);
+    }
+
+    private void setInterest(int ops, boolean enabled) {
+        if(mKey != null && mKey.isValid())
+            mKey.interestOps(enabled ? mKey.interestOps() | ops : mKey.interestOps() & ~ops);
+    }
+
+    public EventLoop getEventLoop() {
+        return mEventLoop;
+    }
+
+    /**
+     * Set the listener of incoming packets. The packets already read and not consumed are delivered to the listener.
+     * @param packetListener The listener.
+     */
+    public void setPacketListener(PacketListener packetListener) {
+        if(mEventLoop.inEventLoop())
+            replacePacketListener(packetListener);
+        else
+            mEventLoop.execute(() -> replacePacketListener(packetListener));
+    }
+
+    private void replacePacketListener(PacketListener packetListener) {
+        mPacketListener = packetListener;
+        Object pending;
+        while ((pending = mIncoming.poll()) != null) {
+            if(pending == END_OF_STREAM)
+                packetListener.onTransportClosed(mCloseCause);
+            else
+                packetListener.onPacketReceived((MQTTPacket) pending);
+        }
+    }
+
+    /**
+     * Read a MQTTPacket object, it's available only if no listener is set.
+     * @param timeout Timeout for read operation.
+     * @return A valid MQTTPacket, null if the connection is closed.
+     * @throws IOException If the timeout expire.
+     */
+    @Override
+    public MQTTPacket readPacket(int timeout) throws IOException, MQTTParseException {
+        try {
+            Object packet = (timeout > -1) ? mIncoming.poll(timeout, TimeUnit.MILLISECONDS) : mIncoming.take();
+            if(packet == null)
+                throw new SocketTimeoutException("Read timed out");
+            if(packet == END_OF_STREAM) {
+                mIncoming.add(END_OF_STREAM);
+                return null;
+            }
+            return (MQTTPacket) packet;
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    @Override
+    public MQTTPacket readPacket() throws IOException, MQTTParseException {
+        return readPacket(-1);
+    }
+
+    /**
+     * Enqueue the packet for write, the write is performed by the event loop.
+     * @param packet Packet to be written.
+     * @param timeout Ignored, the write never blocks.
+     */
+    @Override
+    public void writePacket(MQTTPacket packet, int timeout) throws IOException {
+        if(mClosed)
+            throw new IOException("Transport closed!");
+        PacketEncoder.Frame[] data = { PacketEncoder.encodeFrame(packet) };
+        mPendingWrites.incrementAndGet();
+        if(mEventLoop.inEventLoop())
+            enqueue(data);
+        else
+            mEventLoop.execute(() -> enqueue(data));
+    }
+
+    @Override
+    public void writePacket(MQTTPacket packet) throws IOException {
+        writePacket(packet, -1);
+    }
+
+    /**
+     * Enqueue the packets for write, and flush them together.
+     * With a write batch, the packets are written with gathering writes.
+     * @param packets Packets to be written.
+     */
+    @Override
+    public void writePackets(List<MQTTPacket> packets) throws IOException {
+        if(mClosed)
+            throw new IOException("Transport closed!");
+        PacketEncoder.Frame[] data = new PacketEncoder.Frame[packets.size()];
+        for(int i = 0; i < data.length; i++)
+            data[i] = PacketEncoder.encodeFrame(packets.get(i));
+        mPendingWrites.addAndGet(data.length);
+        if(mEventLoop.inEventLoop())
+            enqueue(data);
+        else
+            mEventLoop.execute(() -> enqueue(data));
+    }
+
+    /**
+     * Add the frames to the write queue and flush them, on the event loop.
+     * The transport can be closed after the check of the caller: the frames are released, not enqueued.
+     */
+    private void enqueue(PacketEncoder.Frame[] data) {
+        if(mClosed) {
+            for(PacketEncoder.Frame frame : data)
+                frame.release();
+            mPendingWrites.set(0);
+            return;
+        }
+        Collections.addAll(mWriteQueue, data);
+        flush();
+    }
+
+    @Override
+    public void setWriteBatch(WriteBatch writeBatch) {
+        if(mEventLoop.inEventLoop())
+            replaceWriteBatch(writeBatch);
+        else
+            mEventLoop.execute(() -> replaceWriteBatch(writeBatch));
+    }
+
+    private void replaceWriteBatch(WriteBatch writeBatch) {
+        mWriteBatch = writeBatch;
+        mGather = new ByteBuffer[2 * ((writeBatch != null) ? writeBatch.getMaxPackets() : 1)];
+    }
+
+    @Override
+    public int getPendingWrites() {
+        return mPendingWrites.get();
+    }
+
+    /**
+     * The listener runs on the event loop, each time a flush empties the write queue.
+     */
+    @Override
+    public void setDrainListener(Runnable listener) {
+        mDrainListener = listener;
+    }
+
+    /**
+     * Close the transport after the write of the pending data.
+     */
+    @Override
+    public void close() throws IOException {
+        if(mEventLoop.inEventLoop()) {
+            flush();
+            closeNow(null);
+        } else {
+            mEventLoop.execute(() -> {
+                flush();
+                closeNow(null);
+            });
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !mClosed && mChannel != null && mChannel.isConnected();
+    }
+
+    @Override
+    public void onSelect(SelectionKey key) {
+        if(key.isReadable())
+            onReadable();
+        if(key.isValid() && key.isWritable())
+            onWritable();
+    }
+
+    /**
+     * Read and decode all the data available.
+     */
+    protected void onReadable() {
+        try {
+            read();
+        } catch (IOException | MQTTParseException e) {
+            closeNow(e);
+        }
+    }
+
+    protected void onWritable() {
+        flush();
+    }
+
+    @Override
+    public void onTick(long now) {
+        if(mPacketListener != null && !mClosed)
+            mPacketListener.onTick(now);
+    }
+
+    private void read() throws IOException, MQTTParseException {
+        int read;
+        while (!mClosing) {
+            if((read = readChannel(mDecoder.writableBuffer())) <= 0) {
+                if(read < 0)
+                    closeNow(null);
+                return;
+            }
+            MQTTPacket packet;
+            while (!mClosing && (packet = mDecoder.decode()) != null)
+                deliver(packet);
+        }
+    }
+
+    private void deliver(MQTTPacket packet) {
+        if(mPacketListener != null)
+            mPacketListener.onPacketReceived(packet);
+        else
+            mIncoming.add(packet);
+    }
+
+    /**
+     * Write the pending data, if the socket buffer is full wait for the write interest.
+     */
+    protected void flush() {
+        if(mKey == null || mClosed || !isReadyForWrite())
+            return;
+        try {
+            while (!mWriteQueue.isEmpty()) {
+                // gather the first packets of queue, within the limits of batch
+                int count = 0;
+                int buffers = 0;
+                int bytes = 0;
+                for(PacketEncoder.Frame data : mWriteQueue) {
+                    if(buffers + 2 > mGather.length || (mWriteBatch != null && !mWriteBatch.canAppend(count, bytes, data.remaining())))
+                        break;
+                    buffers += data.gather(mGather, buffers);
+                    bytes += data.remaining();
+                    count++;
+                }
+                boolean completed = writeChannel(mGather, 0, buffers);
+                for(int i = 0; i < buffers; i++)
+                    mGather[i] = null;
+                // the packets are written in order, the completed ones are at the head of queue
+                int written = 0;
+                Iterator<PacketEncoder.Frame> gathered = mWriteQueue.iterator();
+                for(int i = 0; i < count; i++) {
+                    PacketEncoder.Frame data = gathered.next();
+                    bytes -= data.remaining();
+                    if(written == i && !data.hasRemaining())
+                        written++;
+                }
+                for(int i = 0; i < written; i++) {
+                    mWriteQueue.poll().release();
+                    mPendingWrites.decrementAndGet();
+                }
+                if(mWriteBatch != null)
+                    mWriteBatch.onFlush(written, bytes);
+                if(!completed) {
+                    setWriteInterest(true);
+                    return;
+                }
+            }
+            if(hasPendingOutput()) {
+                // the queue is empty, but not the data: the write is not drained yet
+                setWriteInterest(true);
+                return;
+            }
+            setWriteInterest(false);
+            Runnable drainListener = mDrainListener;
+            if(drainListener != null)
+                drainListener.run();
+        } catch (IOException e) {
+            closeNow(e);
+        }
+    }
+
+    protected void closeNow(Throwable cause) {
+        if(mClosing)
+            return;
+        mClosing = true;
+        mCloseCause = cause;
+        // the listener can write a last packet before the close, e.g. a ConnAck refused
+        if(mPacketListener != null)
+            mPacketListener.onTransportClosed(cause);
+        else
+            mIncoming.add(END_OF_STREAM);
+        flush();
+        onClose();
+        mClosed = true;
+        try {
+            if(mKey != null)
+                mKey.cancel();
+            if(mChannel != null)
+                mChannel.close();
+        } catch (IOException e) {
+            CustomLogger.LOGGER.severe("TransportNIO: " + e);
+        }
+        PacketEncoder.Frame data;
+        while ((data = mWriteQueue.poll()) != null)
+            data.release();
+        mPendingWrites.set(0);
+    }
+}
@@ -0,0 +1,348 @@
+package it.petretiandrea.common.network;
+
+import it.petretiandrea.utils.BufferPool;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non blocking TLS transport, the encryption is performed by a {@link SSLEngine} on the event loop.
+ * The network and application buffers are taken from a pool only while they contain data,
+ * so an idle connection does not hold them.
+ */
+public class TransportNIOTLS extends TransportNIO {
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    /**
+     * Pools of network buffers (direct, used for channel IO) and application buffers, 16 MB each.
+     */
+    private static final BufferPool NETWORK_BUFFERS = new BufferPool(true, 16L << 20);
+    private static final BufferPool APPLICATION_BUFFERS = new BufferPool(false, 16L << 20);
+
+    /**
+     * Bounded executor for the delegated tasks of handshake, e.g. the key exchange and certificate validation.
+     * When the queue is full the task is deferred, never run on the event loop: it's submitted again
+     * at the end of a task in execution, when the queue has space.
+     */
+    private static final ThreadPoolExecutor HANDSHAKE_TASKS;
+    private static final Queue<Runnable> DEFERRED_TASKS = new ConcurrentLinkedQueue<>();
+
+    static {
+        int threads = Runtime.getRuntime().availableProcessors();
+        HANDSHAKE_TASKS = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(1024), runnable -> {
+                    Thread thread = new Thread(runnable, "tls-handshake");
+                    thread.setDaemon(true);
+                    return thread;
+                }, (runnable, executor) -> {
+                    DEFERRED_TASKS.add(runnable);
+                    // the queue can be drained meanwhile, by tasks that did not see this one
+                    submitDeferredTasks();
+                }) {
+            @Override
+            protected void afterExecute(Runnable runnable, Throwable throwable) {
+                submitDeferredTasks();
+            }
+        };
+        HANDSHAKE_TASKS.allowCoreThreadTimeOut(true);
+    }
+
+    private final SSLContext mSSLContext;
+    private SSLEngine mEngine;
+
+    private ByteBuffer mNetIn;
+    private ByteBuffer mNetOut;
+    private ByteBuffer mAppIn;
+
+    private boolean mHandshakeDone;
+    private boolean mTaskRunning;
+
+    /**
+     * Client side transport, the connection is opened by {@link #connect(String, int)}.
+     */
+    public TransportNIOTLS(SSLContext sslContext, EventLoop eventLoop) {
+        super(eventLoop);
+        mSSLContext = sslContext;
+    }
+
+    /**
+     * Server side transport of an accepted channel.
+     */
+    public TransportNIOTLS(SocketChannel channel, EventLoop eventLoop, SSLContext sslContext) {
+        super(eventLoop);
+        mSSLContext = sslContext;
+        mEngine = sslContext.createSSLEngine();
+        mEngine.setUseClientMode(false);
+        attach(channel);
+    }
+
+    @Override
+    public void connect(String hostname, int port) throws IOException {
+        if(getChannel() == null) {
+            mEngine = mSSLContext.createSSLEngine(hostname, port);
+            mEngine.setUseClientMode(true);
+            attach(SocketChannel.open(new InetSocketAddress(hostname, port)));
+        }
+    }
+
+    @Override
+    protected void onRegistered() throws IOException {
+        mEngine.beginHandshake();
+        handshake();
+    }
+
+    @Override
+    protected boolean isReadyForWrite() {
+        return mHandshakeDone;
+    }
+
+    @Override
+    protected void onWritable() {
+        try {
+            if(!mHandshakeDone) {
+                handshake();
+            } else if(flushNetworkData()) {
+                super.onWritable();
+            } else {
+                // the encrypted data of the last wrap are not written yet
+                setWriteInterest(true);
+            }
+        } catch (IOException e) {
+            closeNow(e);
+        }
+    }
+
+    @Override
+    protected boolean hasPendingOutput() {
+        return mNetOut != null;
+    }
+
+    @Override
+    protected int readChannel(ByteBuffer dst) throws IOException {
+        if(!mHandshakeDone && !handshake())
+            return 0;
+
+        // plain data of previous read, not consumed
+        if(mAppIn != null && mAppIn.position() > 0)
+            return drainApplicationData(dst);
+
+        if(mNetIn == null)
+            mNetIn = NETWORK_BUFFERS.acquire(mEngine.getSession().getPacketBufferSize());
+        int read = getChannel().read(mNetIn);
+        if(read < 0 && mNetIn.position() == 0)
+            return -1;
+
+        if(mAppIn == null)
+            mAppIn = APPLICATION_BUFFERS.acquire(mEngine.getSession().getApplicationBufferSize());
+        mNetIn.flip();
+        try {
+            while (mNetIn.hasRemaining()) {
+                SSLEngineResult result = mEngine.unwrap(mNetIn, mAppIn);
+                if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+                    return -1;
+                if(result.getStatus() != SSLEngineResult.Status.OK)
+                    break; // underflow: wait more data, overflow: drain the application buffer.
+                if(result.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                    // renegotiation or post handshake messages
+                    mHandshakeDone = false;
+                    break;
+                }
+            }
+        } finally {
+            mNetIn.compact();
+            releaseIfEmpty();
+        }
+
+        if(!mHandshakeDone && !handshake())
+            return drainApplicationData(dst);
+        int drained = drainApplicationData(dst);
+        return (drained == 0 && read < 0) ? -1 : drained;
+    }
+
+    @Override
+    protected boolean writeChannel(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if(!flushNetworkData())
+            return false;
+        // the engine packs the buffers together in records
+        while (srcs[offset + length - 1].hasRemaining()) {
+            if(mNetOut == null)
+                mNetOut = NETWORK_BUFFERS.acquire(mEngine.getSession().getPacketBufferSize());
+            SSLEngineResult result = mEngine.wrap(srcs, offset, length, mNetOut);
+            if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+                throw new SSLException("SSLEngine closed");
+            if(!flushNetworkData())
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    protected void onClose() {
+        try {
+            mEngine.closeOutbound();
+            if(mNetOut == null)
+                mNetOut = NETWORK_BUFFERS.acquire(mEngine.getSession().getPacketBufferSize());
+            mEngine.wrap(EMPTY, mNetOut);
+            flushNetworkData();
+        } catch (IOException ignored) {
+            // best effort close notify
+        } finally {
+            NETWORK_BUFFERS.release(mNetIn);
+            NETWORK_BUFFERS.release(mNetOut);
+            APPLICATION_BUFFERS.release(mAppIn);
+            mNetIn = mNetOut = mAppIn = null;
+        }
+    }
+
+    /**
+     * Advance the handshake until it needs to wait for the network, or for a delegated task.
+     * @return True if the handshake is completed.
+     */
+    private boolean handshake() throws IOException {
+        while (!mHandshakeDone) {
+            switch (mEngine.getHandshakeStatus()) {
+                case FINISHED:
+                case NOT_HANDSHAKING:
+                    mHandshakeDone = true;
+                    releaseIfEmpty();
+                    // write the packets enqueued during the handshake
+                    flush();
+                    return true;
+                case NEED_TASK:
+                    if(!mTaskRunning)
+                        runDelegatedTasks();
+                    return false;
+                case NEED_WRAP:
+                    if(mNetOut == null)
+                        mNetOut = NETWORK_BUFFERS.acquire(mEngine.getSession().getPacketBufferSize());
+                    if(mEngine.wrap(EMPTY, mNetOut).getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new SSLException("SSLEngine closed during handshake");
+                    if(!flushNetworkData()) {
+                        setWriteInterest(true);
+                        return false;
+                    }
+                    break;
+                default: // NEED_UNWRAP
+                    if(mNetIn == null)
+                        mNetIn = NETWORK_BUFFERS.acquire(mEngine.getSession().getPacketBufferSize());
+                    if(mAppIn == null)
+                        mAppIn = APPLICATION_BUFFERS.acquire(mEngine.getSession().getApplicationBufferSize());
+                    mNetIn.flip();
+                    SSLEngineResult result = mEngine.unwrap(mNetIn, mAppIn);
+                    mNetIn.compact();
+                    if(result.getStatus() == SSLEngineResult.Status.CLOSED)
+                        throw new EOFException("Connection closed during handshake");
+                    if(result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+                        int read = getChannel().read(mNetIn);
+                        if(read < 0)
+                            throw new EOFException("Connection closed during handshake");
+                        if(read == 0)
+                            return false;
+                    }
+                    break;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Submit the deferred tasks while the queue of the handshake executor has space.
+     */
+    private static void submitDeferredTasks() {
+        Runnable task;
+        while (HANDSHAKE_TASKS.getQueue().remainingCapacity() > 0 && (task = DEFERRED_TASKS.poll()) != null)
+            HANDSHAKE_TASKS.execute(task);
+    }
+
+    /**
+     * Run the delegated tasks on the handshake executor, then continue the handshake on the event loop.
+     * The read interest is disabled until the tasks are completed, the engine can't consume the data meanwhile.
+     */
+    private void runDelegatedTasks() {
+        List<Runnable> tasks = new ArrayList<>();
+        Runnable task;
+        while ((task = mEngine.getDelegatedTask()) != null)
+            tasks.add(task);
+        mTaskRunning = true;
+        setReadInterest(false);
+        HANDSHAKE_TASKS.execute(() -> {
+            tasks.forEach(Runnable::run);
+            getEventLoop().execute(() -> {
+                mTaskRunning = false;
+                setReadInterest(true);
+                try {
+                    // the peer can send application data right after the handshake
+                    if(handshake())
+                        onReadable();
+                } catch (IOException e) {
+                    closeNow(e);
+                }
+            });
+        });
+    }
+
+    /**
+     * Write the encrypted data pending.
+     * @return True if all data are written.
+     */
+    private boolean flushNetworkData() throws IOException {
+        if(mNetOut == null)
+            return true;
+        mNetOut.flip();
+        getChannel().write(mNetOut);
+        if(mNetOut.hasRemaining()) {
+            mNetOut.compact();
+            return false;
+        }
+        NETWORK_BUFFERS.release(mNetOut);
+        mNetOut = null;
+        return true;
+    }
+
+    /**
+     * Move the plain data into the buffer of the transport.
+     * @return Number of bytes moved.
+     */
+    private int drainApplicationData(ByteBuffer dst) {
+        if(mAppIn == null || mAppIn.position() == 0)
+            return 0;
+        mAppIn.flip();
+        int length = Math.min(mAppIn.remaining(), dst.remaining());
+        ByteBuffer slice = mAppIn.duplicate();
+        slice.limit(slice.position() + length);
+        dst.put(slice);
+        mAppIn.position(mAppIn.position() + length);
+        mAppIn.compact();
+        releaseIfEmpty();
+        return length;
+    }
+
+    /**
+     * Give back to the pool the input buffers without data.
+     */
+    private void releaseIfEmpty() {
+        if(mNetIn != null && mNetIn.position() == 0) {
+            NETWORK_BUFFERS.release(mNetIn);
+            mNetIn = null;
+        }
+        if(mAppIn != null && mAppIn.position() == 0) {
+            APPLICATION_BUFFERS.release(mAppIn);
+            mAppIn = null;
+        }
+    }
+}
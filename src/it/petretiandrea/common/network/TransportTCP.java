@@ -8,6 +8,8 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -20,6 +22,11 @@ public class TransportTCP implements Transport {
     private Socket mSocket;
     private BufferedMQTTReader mMQTTReader;
 
+    /**
+     * Limits of write coalescing, null if each packet is written alone.
+     */
+    private volatile WriteBatch mWriteBatch;
+
     public TransportTCP() throws IOException {
         this(null);
     }
@@ -77,7 +84,7 @@ public class TransportTCP implements Transport {
         try {
             if(timeout > -1)
                 mSocket.setSoTimeout(timeout);
-            write(packet.toByte());
+            write(packet);
         } finally {
             if(timeout > -1)
                 mSocket.setSoTimeout(tmpTimeout);
@@ -89,6 +96,33 @@ public class TransportTCP implements Transport {
         writePacket(packet, -1);
     }
 
+    /**
+     * Write the packets. With a write batch the packets are encoded together in a single buffer,
+     * and written with a single write and flush for each batch.
+     */
+    @Override
+    public void writePackets(List<MQTTPacket> packets) throws IOException {
+        WriteBatch writeBatch = mWriteBatch;
+        if(writeBatch == null) {
+            Transport.super.writePackets(packets);
+            return;
+        }
+        int start = 0;
+        while (start < packets.size()) {
+            int end = writeBatch.nextBatchEnd(packets, start);
+            ByteBuffer data = PacketEncoder.encode(packets, start, end);
+            int length = data.remaining();
+            write(data);
+            writeBatch.onFlush(end - start, length);
+            start = end;
+        }
+    }
+
+    @Override
+    public void setWriteBatch(WriteBatch writeBatch) {
+        mWriteBatch = writeBatch;
+    }
+
     @Override
     public void close() throws IOException {
         mLockRead.lock();
@@ -109,6 +143,31 @@ public class TransportTCP implements Transport {
     }
 
 
+    /**
+     * Encode the packet into a pooled buffer and write it on socket. It's thread safe.
+     * @param packet Packet to be writed.
+     * @throws IOException If there is an error on socket write.
+     */
+    private void write(MQTTPacket packet) throws IOException {
+        write(PacketEncoder.encode(packet));
+    }
+
+    /**
+     * Write a pooled buffer on socket and release it. It's thread safe.
+     * @param data Data to be writed, in read mode.
+     * @throws IOException If there is an error on socket write.
+     */
+    private void write(ByteBuffer data) throws IOException {
+        mLockWrite.lock();
+        try {
+            mSocket.getOutputStream().write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            mSocket.getOutputStream().flush();
+        } finally {
+            mLockWrite.unlock();
+            PacketEncoder.release(data);
+        }
+    }
+
     /**
      * Write on socket. It's thread safe.
      * @param data Data to be writed.
@@ -10,6 +10,8 @@ import javax.net.ssl.SSLSocketFactory;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
@@ -22,13 +24,17 @@ public class TransportTLS implements Transport {
     private Socket mSocket;
     private BufferedMQTTReader mMQTTReader;
 
+    /**
+     * Limits of write coalescing, null if each packet is written alone.
+     */
+    private volatile WriteBatch mWriteBatch;
+
     private SSLSocketFactory mSSLSocketFactory;
 
     public TransportTLS(SSLContextProvider contextProvider) throws IOException {
         try {
-            SSLContext context = SSLContext.getInstance(contextProvider.getProtocol());
-            context.init(contextProvider.getKeyManagers(), contextProvider.getTrustManagers(), null);
-            mSSLSocketFactory = context.getSocketFactory();
+            // shared context, so a reconnection can resume the TLS session
+            mSSLSocketFactory = contextProvider.getSSLContext().getSocketFactory();
             mLockWrite = new ReentrantLock(true);
             mLockRead = new ReentrantLock(true);
         } catch (GeneralSecurityException e) {
@@ -102,7 +108,7 @@ public class TransportTLS implements Transport {
         try {
             if(timeout > -1)
                 mSocket.setSoTimeout(timeout);
-            write(packet.toByte());
+            write(packet);
         } finally {
             if(timeout > -1)
                 mSocket.setSoTimeout(tmpTimeout);
@@ -114,6 +120,33 @@ public class TransportTLS implements Transport {
         writePacket(packet, -1);
     }
 
+    /**
+     * Write the packets. With a write batch the packets are encoded together in a single buffer,
+     * and written with a single write and flush for each batch.
+     */
+    @Override
+    public void writePackets(List<MQTTPacket> packets) throws IOException {
+        WriteBatch writeBatch = mWriteBatch;
+        if(writeBatch == null) {
+            Transport.super.writePackets(packets);
+            return;
+        }
+        int start = 0;
+        while (start < packets.size()) {
+            int end = writeBatch.nextBatchEnd(packets, start);
+            ByteBuffer data = PacketEncoder.encode(packets, start, end);
+            int length = data.remaining();
+            write(data);
+            writeBatch.onFlush(end - start, length);
+            start = end;
+        }
+    }
+
+    @Override
+    public void setWriteBatch(WriteBatch writeBatch) {
+        mWriteBatch = writeBatch;
+    }
+
     @Override
     public void close() throws IOException {
         mLockRead.lock();
@@ -134,6 +167,31 @@ public class TransportTLS implements Transport {
     }
 
 
+    /**
+     * Encode the packet into a pooled buffer and write it on socket. It's thread safe.
+     * @param packet Packet to be writed.
+     * @throws IOException If there is an error on socket write.
+     */
+    private void write(MQTTPacket packet) throws IOException {
+        write(PacketEncoder.encode(packet));
+    }
+
+    /**
+     * Write a pooled buffer on socket and release it. It's thread safe.
+     * @param data Data to be writed, in read mode.
+     * @throws IOException If there is an error on socket write.
+     */
+    private void write(ByteBuffer data) throws IOException {
+        mLockWrite.lock();
+        try {
+            mSocket.getOutputStream().write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            mSocket.getOutputStream().flush();
+        } finally {
+            mLockWrite.unlock();
+            PacketEncoder.release(data);
+        }
+    }
+
     /**
      * Write on socket. It's thread safe.
      * @param data Data to be writed.
@@ -0,0 +1,117 @@
+package it.petretiandrea.common.network;
+
+import it.petretiandrea.core.packet.base.MQTTPacket;
+
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Settings of the write coalescing: the pending packets of a connection are written together,
+ * with a single write on socket, until the max number of packets or bytes of a batch is reached.
+ * The counters are shared by all the transports that use this batch, e.g. all the connections of a broker.
+ */
+public class WriteBatch {
+
+    public static final int DEFAULT_MAX_PACKETS = 64;
+    public static final int DEFAULT_MAX_BYTES = 64 * 1024;
+
+    private final int mMaxPackets;
+    private final int mMaxBytes;
+
+    private final LongAdder mFlushes;
+    private final LongAdder mPackets;
+    private final LongAdder mBytes;
+
+    public WriteBatch() {
+        this(DEFAULT_MAX_PACKETS, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * @param maxPackets Max number of packets written together.
+     * @param maxBytes Max bytes written together. A packet larger than this is written alone.
+     */
+    public WriteBatch(int maxPackets, int maxBytes) {
+        if(maxPackets < 1 || maxBytes < 1)
+            throw new IllegalArgumentException("Max packets and max bytes of a batch must be positive");
+        mMaxPackets = maxPackets;
+        mMaxBytes = maxBytes;
+        mFlushes = new LongAdder();
+        mPackets = new LongAdder();
+        mBytes = new LongAdder();
+    }
+
+    public int getMaxPackets() {
+        return mMaxPackets;
+    }
+
+    public int getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /**
+     * Check if a packet can be added to a batch.
+     * @param packets Packets already in the batch.
+     * @param bytes Bytes already in the batch.
+     * @param length Bytes of the packet to add.
+     */
+    public boolean canAppend(int packets, int bytes, int length) {
+        return packets == 0 || (packets < mMaxPackets && bytes + length <= mMaxBytes);
+    }
+
+    /**
+     * Split a list of packets in batches.
+     * @param packets Packets to be written.
+     * @param from Index of first packet of the batch.
+     * @return Index of the first packet after the batch.
+     */
+    public int nextBatchEnd(List<MQTTPacket> packets, int from) {
+        int end = from;
+        int bytes = 0;
+        int length;
+        while (end < packets.size() && canAppend(end - from, bytes, length = packets.get(end).encodedLength())) {
+            bytes += length;
+            end++;
+        }
+        return end;
+    }
+
+    /**
+     * Record a write on socket.
+     * @param packets Packets written.
+     * @param bytes Bytes written.
+     */
+    public void onFlush(int packets, long bytes) {
+        mFlushes.increment();
+        mPackets.add(packets);
+        mBytes.add(bytes);
+    }
+
+    /**
+     * @return Number of writes on socket.
+     */
+    public long getFlushes() {
+        return mFlushes.sum();
+    }
+
+    public long getPacketsWritten() {
+        return mPackets.sum();
+    }
+
+    public long getBytesWritten() {
+        return mBytes.sum();
+    }
+
+    /**
+     * @return Average number of packets for each write on socket.
+     */
+    public double getPacketsPerFlush() {
+        long flushes = mFlushes.sum();
+        return (flushes > 0) ? (double) mPackets.sum() / flushes : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("WriteBatch{maxPackets=%d, maxBytes=%d, flushes=%d, packets=%d, packetsPerFlush=%.2f}",
+                mMaxPackets, mMaxBytes, getFlushes(), getPacketsWritten(), getPacketsPerFlush());
+    }
+}
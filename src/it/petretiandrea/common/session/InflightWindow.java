@@ -0,0 +1,185 @@
+package it.petretiandrea.common.session;
+
+import it.petretiandrea.core.packet.ACK;
+import it.petretiandrea.core.packet.Publish;
+import it.petretiandrea.core.packet.Subscribe;
+import it.petretiandrea.core.packet.Unsubscribe;
+import it.petretiandrea.core.packet.base.MQTTPacket;
+
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Packets in flight, indexed by their packet identifier: the lookup and the remove of the packet of an ack
+ * are a read of a slot, not a scan of all packets not acknowledged.
+ * The 65536 identifiers are split in pages of slots, allocated at the first packet of the page, so a session
+ * with a few packets in flight keeps in memory only the pages of their identifiers.
+ * At most one packet for identifier, a packet added with the identifier of another packet replaces it.
+ * Thread safe and lock free. The iteration visits the packets in order of identifier, not of insertion.
+ * @param <T> Type of packets.
+ */
+public class InflightWindow<T extends MQTTPacket> extends AbstractCollection<T> {
+
+    private static final int PAGE_BITS = 8;
+    private static final int PAGE_SIZE = 1 << PAGE_BITS;
+    private static final int PAGE_MASK = PAGE_SIZE - 1;
+    private static final int PAGES = (0xFFFF >>> PAGE_BITS) + 1;
+
+    private final AtomicReferenceArray<AtomicReferenceArray<T>> mPages;
+    private final AtomicInteger mSize;
+
+    public InflightWindow() {
+        mPages = new AtomicReferenceArray<>(PAGES);
+        mSize = new AtomicInteger(0);
+    }
+
+    /**
+     * @return The packet identifier of a packet that is acknowledged, -1 for the other packets.
+     */
+    public static int getPacketID(MQTTPacket packet) {
+        if(packet instanceof Publish)
+            return ((Publish) packet).getMessageID();
+        if(packet instanceof Subscribe)
+            return ((Subscribe) packet).getMessageID();
+        if(packet instanceof Unsubscribe)
+            return ((Unsubscribe) packet).getMessageID();
+        if(packet instanceof ACK)
+            return ((ACK) packet).getMessageID();
+        return -1;
+    }
+
+    /**
+     * Add a packet in the slot of its identifier.
+     * @return The packet replaced, null if the slot was empty.
+     */
+    public T put(int packetID, T packet) {
+        T previous = page(packetID, true).getAndSet(packetID & PAGE_MASK, packet);
+        if(previous == null)
+            mSize.incrementAndGet();
+        return previous;
+    }
+
+    /**
+     * @return The packet of the identifier, null if not present.
+     */
+    public T get(int packetID) {
+        AtomicReferenceArray<T> page = page(packetID, false);
+        return (page != null) ? page.get(packetID & PAGE_MASK) : null;
+    }
+
+    /**
+     * @return The packet removed, null if not present.
+     */
+    public T remove(int packetID) {
+        AtomicReferenceArray<T> page = page(packetID, false);
+        if(page == null)
+            return null;
+        T previous = page.getAndSet(packetID & PAGE_MASK, null);
+        if(previous != null)
+            mSize.decrementAndGet();
+        return previous;
+    }
+
+    /**
+     * Remove the packet of the identifier only if it's the packet given, e.g. after check its type.
+     * @return True if removed, False if the slot has another packet or none.
+     */
+    public boolean remove(int packetID, T packet) {
+        AtomicReferenceArray<T> page = page(packetID, false);
+        if(page == null || packet == null || !page.compareAndSet(packetID & PAGE_MASK, packet, null))
+            return false;
+        mSize.decrementAndGet();
+        return true;
+    }
+
+    private AtomicReferenceArray<T> page(int packetID, boolean create) {
+        if(packetID < 0 || packetID > 0xFFFF)
+            throw new IllegalArgumentException("Invalid packet identifier: " + packetID);
+        int index = packetID >>> PAGE_BITS;
+        AtomicReferenceArray<T> page = mPages.get(index);
+        if(page == null && create) {
+            mPages.compareAndSet(index, null, new AtomicReferenceArray<>(PAGE_SIZE));
+            page = mPages.get(index);
+        }
+        return page;
+    }
+
+    @Override
+    public boolean add(T packet) {
+        put(getPacketID(packet), packet);
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean remove(Object packet) {
+        if(!(packet instanceof MQTTPacket))
+            return false;
+        int packetID = getPacketID((MQTTPacket) packet);
+        return packetID >= 0 && remove(packetID, (T) packet);
+    }
+
+    @Override
+    public boolean contains(Object packet) {
+        if(!(packet instanceof MQTTPacket))
+            return false;
+        int packetID = getPacketID((MQTTPacket) packet);
+        return packetID >= 0 && packet.equals(get(packetID));
+    }
+
+    @Override
+    public int size() {
+        return mSize.get();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return mSize.get() == 0;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new Iterator<T>() {
+            private int mNextID = 0;
+            private T mNext;
+            private int mLastID = -1;
+            private T mLast;
+
+            @Override
+            public boolean hasNext() {
+                while (mNext == null && mNextID <= 0xFFFF) {
+                    AtomicReferenceArray<T> page = mPages.get(mNextID >>> PAGE_BITS);
+                    if(page == null) {
+                        // skip the page not allocated
+                        mNextID = ((mNextID >>> PAGE_BITS) + 1) << PAGE_BITS;
+                        continue;
+                    }
+                    mNext = page.get(mNextID & PAGE_MASK);
+                    mNextID++;
+                }
+                return mNext != null;
+            }
+
+            @Override
+            public T next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                mLast = mNext;
+                mLastID = mNextID - 1;
+                mNext = null;
+                return mLast;
+            }
+
+            @Override
+            public void remove() {
+                if(mLast == null)
+                    throw new IllegalStateException();
+                InflightWindow.this.remove(mLastID, mLast);
+                mLast = null;
+            }
+        };
+    }
+}
@@ -0,0 +1,111 @@
+package it.petretiandrea.common.session;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Packet identifiers of a session, from 1 to 65535: an identifier acquired is in use until it's released,
+ * at the ack of its packet, so a new packet never takes the identifier of a packet still in flight.
+ * The identifiers in use are bits of a bitmap, set and cleared with a compare and set, and the search of a free
+ * identifier starts from a cursor that moves forward, so with the acks in order of send the first try is free.
+ * The bitmap is split in pages allocated at the first identifier of the page.
+ * When all identifiers are in use the acquire fails, and the sender must wait a release (backpressure).
+ * Thread safe and lock free.
+ */
+public class PacketIDAllocator {
+
+    public static final int MAX_PACKET_ID = 65535;
+
+    private static final int PAGE_BITS = 12;
+    private static final int PAGE_MASK = (1 << PAGE_BITS) - 1;
+    private static final int PAGES = (MAX_PACKET_ID >>> PAGE_BITS) + 1;
+
+    private final AtomicReferenceArray<AtomicLongArray> mPages;
+    private final AtomicInteger mCursor;
+    private final AtomicInteger mInUse;
+
+    public PacketIDAllocator() {
+        mPages = new AtomicReferenceArray<>(PAGES);
+        mCursor = new AtomicInteger(0);
+        mInUse = new AtomicInteger(0);
+    }
+
+    /**
+     * Acquire a free identifier.
+     * @return The identifier, from 1 to 65535, or -1 if all identifiers are in use.
+     */
+    public int acquire() {
+        for(int attempt = 0; attempt < MAX_PACKET_ID && mInUse.get() < MAX_PACKET_ID; attempt++) {
+            int packetID = Math.floorMod(mCursor.getAndIncrement(), MAX_PACKET_ID) + 1;
+            if(reserve(packetID))
+                return packetID;
+        }
+        return -1;
+    }
+
+    /**
+     * Mark an identifier in use, e.g. for the packets in flight of a session restored.
+     * @return True if reserved, False if it's already in use.
+     */
+    public boolean reserve(int packetID) {
+        AtomicLongArray page = page(packetID, true);
+        int index = (packetID & PAGE_MASK) >>> 6;
+        long bit = 1L << packetID;
+        long word;
+        do {
+            word = page.get(index);
+            if((word & bit) != 0)
+                return false;
+        } while (!page.compareAndSet(index, word, word | bit));
+        mInUse.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Release an identifier, it can be acquired again.
+     * @return True if released, False if it was not in use.
+     */
+    public boolean release(int packetID) {
+        AtomicLongArray page = page(packetID, false);
+        if(page == null)
+            return false;
+        int index = (packetID & PAGE_MASK) >>> 6;
+        long bit = 1L << packetID;
+        long word;
+        do {
+            word = page.get(index);
+            if((word & bit) == 0)
+                return false;
+        } while (!page.compareAndSet(index, word, word & ~bit));
+        mInUse.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * @return True if the identifier is in use.
+     */
+    public boolean isInUse(int packetID) {
+        AtomicLongArray page = page(packetID, false);
+        return page != null && (page.get((packetID & PAGE_MASK) >>> 6) & (1L << packetID)) != 0;
+    }
+
+    /**
+     * @return Number of identifiers in use.
+     */
+    public int inUse() {
+        return mInUse.get();
+    }
+
+    private AtomicLongArray page(int packetID, boolean create) {
+        if(packetID < 1 || packetID > MAX_PACKET_ID)
+            throw new IllegalArgumentException("Invalid packet identifier: " + packetID);
+        int index = packetID >>> PAGE_BITS;
+        AtomicLongArray page = mPages.get(index);
+        if(page == null && create) {
+            mPages.compareAndSet(index, null, new AtomicLongArray(1 << (PAGE_BITS - 6)));
+            page = mPages.get(index);
+        }
+        return page;
+    }
+}
@@ -17,13 +17,18 @@ public class Session {
     private final boolean mCleanSession;
 
     /**
-     * QoS 1 and QoS 2 messages which have been sent to the Server, but have not been completely acknowledged.
+     * QoS 1 and QoS 2 messages which have been sent to the Server, but have not been completely acknowledged,
+     * indexed by packet identifier.
      */
-    private QueueMQTT<MQTTPacket> mSendedNotAck;
+    private InflightWindow<MQTTPacket> mSendedNotAck;
     /**
      * QoS 2 messages which have been received from the Server, but have not been completely acknowledged.
      */
     private QueueMQTT<MQTTPacket> mReceivedNotAck;
+    /**
+     * Packet identifiers of the packets sent, in use until the ack.
+     */
+    private final PacketIDAllocator mPacketIDs;
 
     public Session(String clientID, boolean cleanSession) {
         this(clientID, cleanSession, Collections.emptyList(), Collections.emptyList());
@@ -32,8 +37,15 @@ public class Session {
     public Session(String clientID, boolean cleanSession, List<MQTTPacket> sendedNotAck, List<MQTTPacket> receivedNotAck) {
         mClientID = clientID;
         mCleanSession = cleanSession;
-        mSendedNotAck = new QueueMQTT<>();
+        mSendedNotAck = new InflightWindow<>();
         mSendedNotAck.addAll(sendedNotAck);
+        mPacketIDs = new PacketIDAllocator();
+        // the packets still in flight keep their identifiers
+        for(MQTTPacket packet : mSendedNotAck) {
+            int packetID = InflightWindow.getPacketID(packet);
+            if(packetID > 0)
+                mPacketIDs.reserve(packetID);
+        }
         mReceivedNotAck = new QueueMQTT<>();
         mReceivedNotAck.addAll(receivedNotAck);
     }
@@ -52,11 +64,15 @@ public class Session {
         return mCleanSession;
     }
 
-    public QueueMQTT<MQTTPacket> getSendedNotAck() {
+    public InflightWindow<MQTTPacket> getSendedNotAck() {
         return mSendedNotAck;
     }
 
     public QueueMQTT<MQTTPacket> getReceivedNotAck() {
         return mReceivedNotAck;
     }
+
+    public PacketIDAllocator getPacketIDs() {
+        return mPacketIDs;
+    }
 }
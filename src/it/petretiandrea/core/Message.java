@@ -1,7 +1,5 @@
 package it.petretiandrea.core;
 
-import it.petretiandrea.utils.MessageIDGenerator;
-
 public class Message {
 
     private int mMessageID;
@@ -16,11 +14,8 @@ public class Message {
         mTopic = topic;
         mMessage = message;
         mQos = qos;
-        // for qos 1 and 2 the message id need to be set
-        if(qos.ordinal() > Qos.QOS_0.ordinal())
-            mMessageID = MessageIDGenerator.getInstance().nextMessageID();
-        else
-            mMessageID = 0; // for qos0 the message id is 0.
+        // for qos 1 and 2 the message id is assigned by the session of client when the message is sent.
+        mMessageID = 0;
     }
 
     public Message(String topic, String message, Qos qos, boolean retain, int messageID) {
@@ -29,7 +24,7 @@ public class Message {
         mMessage = message;
         mQos = qos;
         if(qos.ordinal() > Qos.QOS_0.ordinal())
-            mMessageID = MessageIDGenerator.getInstance().nextMessageID();
+            mMessageID = messageID;
         else
             mMessageID = 0; // for qos0 the message id is 0.
     }
@@ -5,6 +5,8 @@ import it.petretiandrea.utils.Utils;
 import it.petretiandrea.core.exception.MQTTParseException;
 import it.petretiandrea.core.packet.base.MQTTPacket;
 
+import java.nio.ByteBuffer;
+
 public abstract class ACK extends MQTTPacket {
 
     private int mMessageID;
@@ -14,15 +16,26 @@ public abstract class ACK extends MQTTPacket {
         mMessageID = messageID;
     }
 
-    public ACK(byte fixedHeader, byte[] body) throws MQTTParseException {
+    public ACK(byte fixedHeader, ByteBuffer body) throws MQTTParseException {
         super(fixedHeader);
-        mMessageID = Utils.getIntFromMSBLSB(body[0], body[1]);
+        mMessageID = Utils.readMSBLSB(body);
     }
 
     public int getMessageID() {
         return mMessageID;
     }
 
+    @Override
+    protected int getRemainingLength() {
+        return 2;
+    }
+
+    @Override
+    protected void encodeBody(ByteBuffer buffer) {
+        buffer.put((byte) (mMessageID >> 8));
+        buffer.put((byte) (mMessageID & 0xFF));
+    }
+
     @Override
     public String toString() {
         return "ACK{" +
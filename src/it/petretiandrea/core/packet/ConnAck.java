@@ -6,6 +6,8 @@ import it.petretiandrea.utils.Utils;
 import it.petretiandrea.core.exception.MQTTParseException;
 import it.petretiandrea.core.packet.base.MQTTPacket;
 
+import java.nio.ByteBuffer;
+
 public class ConnAck extends MQTTPacket {
 
     private boolean mSessionPresent;
@@ -17,23 +19,23 @@ public class ConnAck extends MQTTPacket {
         mConnectionStatus = connectionStatus;
     }
 
-    public ConnAck(byte fixedHeader, byte[] body) throws MQTTParseException {
+    public ConnAck(byte fixedHeader, ByteBuffer body) throws MQTTParseException {
         super(fixedHeader);
-        mSessionPresent = (body[0] & 0x01) == 1;;
-        mConnectionStatus = ConnectionStatus.fromInteger(body[1] & 0xFF);
+        mSessionPresent = (body.get() & 0x01) == 1;
+        mConnectionStatus = ConnectionStatus.fromInteger(body.get() & 0xFF);
+    }
+
+    @Override
+    protected int getRemainingLength() {
+        return 2;
     }
 
     @Override
-    public byte[] toByte() {
-        byte[] variableHeader = new byte[2];
+    protected void encodeBody(ByteBuffer buffer) {
         // if the connection is not setted to accept, the sessionePresent is set to 0.
         // first byte is setted if the server have the sessione for this client.
-        variableHeader[0] = (mConnectionStatus != ConnectionStatus.ACCEPT) ? 0 : (byte) (mSessionPresent ? 1 : 0);
-        variableHeader[1] = (byte) mConnectionStatus.Value();
-        return Utils.Join(
-                Utils.GenerateFixedHeader(getCommand(), 2, isDup(), getQos().ordinal(), isRetain()),
-                variableHeader
-        );
+        buffer.put((mConnectionStatus != ConnectionStatus.ACCEPT) ? 0 : (byte) (mSessionPresent ? 1 : 0));
+        buffer.put((byte) mConnectionStatus.Value());
     }
 
     public boolean isSessionPresent() {
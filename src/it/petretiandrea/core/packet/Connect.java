@@ -6,8 +6,7 @@ import it.petretiandrea.core.exception.MQTTParseException;
 import it.petretiandrea.utils.Utils;
 
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 import static it.petretiandrea.utils.Utils.*;
 import static it.petretiandrea.core.exception.MQTTParseException.Reason;
@@ -32,7 +31,6 @@ public class Connect extends MQTTPacket {
     private int mKeepAliveSeconds;
     private Message mWillMessage;
 
-
     public Connect(MQTTVersion mqttVersion, ConnectionSettings connectionSettings) {
         this(mqttVersion, connectionSettings.getClientId(), (mqttVersion == MQTTVersion.MQTT_31) ? "MQIsdp" : "MQTT",
                 (mqttVersion == MQTTVersion.MQTT_31) ? 3 : 4, connectionSettings.getUsername(),
@@ -56,46 +54,37 @@ public class Connect extends MQTTPacket {
     }
 
     // constructor from packet of byte to object.
-    public Connect(byte fixedHeader, byte[] packet) throws UnsupportedEncodingException, MQTTParseException {
+    public Connect(byte fixedHeader, ByteBuffer packet) throws UnsupportedEncodingException, MQTTParseException {
         super(fixedHeader);
-        int offset = 0;
-
-        int protocolNameLength = Utils.getIntFromMSBLSB(packet[offset++], packet[offset++]);
-        mProtocolName = new String(packet, offset, protocolNameLength, "UTF-8");
 
-        offset += protocolNameLength;
+        mProtocolName = Utils.readString(packet);
 
-        mProtocolLevel = packet[offset++] & 0xFF;
-        boolean usernameFlag = (packet[offset] & 0x80) == 0x80;
-        boolean passwordFlag = (packet[offset] & 0x40) == 0x40;
+        mProtocolLevel = packet.get() & 0xFF;
+        byte flags = packet.get();
+        boolean usernameFlag = (flags & 0x80) == 0x80;
+        boolean passwordFlag = (flags & 0x40) == 0x40;
 
+        boolean willRetainFlag = (flags & 0x20) == 0x20;
+        int willQos = (flags & 0x18) >> 3;
+        boolean willFlag = (flags & 0x04) == 0x04;
+        mCleanSession = (flags & 0x02) == 0x02;
 
-        boolean willRetainFlag = (packet[offset] & 0x20) == 0x20;
-        int willQos = (packet[offset] & 0x18) >> 3;
-        boolean willFlag = (packet[offset] & 0x04) == 0x04;
-        mCleanSession = (packet[offset] & 0x02) == 0x02;
-
-        mKeepAliveSeconds = Utils.getIntFromMSBLSB(packet[++offset], packet[++offset]);
+        mKeepAliveSeconds = Utils.readMSBLSB(packet);
 
         // parse MQTTClient ID.
-        int clientIDLength = Utils.getIntFromMSBLSB(packet[++offset], packet[++offset]);
-        mClientID = new String(packet, ++offset, clientIDLength, "UTF-8");
-        offset += clientIDLength;
+        int clientIDLength = Utils.readMSBLSB(packet);
+        mClientID = Utils.readString(packet, clientIDLength);
         if(clientIDLength > 23 || clientIDLength < 0 || mClientID.trim().isEmpty() /*|| !mClientID.matches(PATTERN_CLIENT_ID)*/)
             throw new MQTTParseException("Invalid MQTTClient ID", Reason.INVALID_CLIENT_ID);
 
         // parse of Will Message
         if(willFlag) {
             // parse will topic.
-            int strLength = Utils.getIntFromMSBLSB(packet[offset++], packet[offset++]);
-            String willTopic = new String(packet, offset, strLength, "UTF-8");
-            offset += strLength;
-            if(strLength <= 0 || willTopic.trim().isEmpty()) throw new MQTTParseException("Invalid Will Topic", Reason.INVALID_WILL);
+            String willTopic = Utils.readString(packet);
+            if(willTopic.trim().isEmpty()) throw new MQTTParseException("Invalid Will Topic", Reason.INVALID_WILL);
             // parse will message content
-            strLength = Utils.getIntFromMSBLSB(packet[offset++], packet[offset++]);
-            String willMessage = new String(packet, offset, strLength, "UTF-8");
-            offset += strLength;
-            if(strLength <= 0 || willMessage.trim().isEmpty()) throw new MQTTParseException("Invalid Will Topic", Reason.INVALID_WILL);
+            String willMessage = Utils.readString(packet);
+            if(willMessage.trim().isEmpty()) throw new MQTTParseException("Invalid Will Topic", Reason.INVALID_WILL);
             mWillMessage = new Message(willTopic, willMessage, Qos.fromInteger(willQos), willRetainFlag);
         } else {
             mWillMessage = null;
@@ -103,19 +92,13 @@ public class Connect extends MQTTPacket {
         }
 
         if(usernameFlag) {
-            int usernameLength = Utils.getIntFromMSBLSB(packet[offset++], packet[offset++]);
-            String username = new String(packet, offset, usernameLength, "UTF-8");
-            offset += usernameLength;
-            mUsername = username;
-            if(usernameLength <= 0 || mUsername.trim().isEmpty()) throw new MQTTParseException("No username", Reason.NO_USERNAME);
+            mUsername = Utils.readString(packet);
+            if(mUsername.trim().isEmpty()) throw new MQTTParseException("No username", Reason.NO_USERNAME);
         } else mUsername = null;
 
         if(passwordFlag) {
-            int passwordLength = Utils.getIntFromMSBLSB(packet[offset++], packet[offset++]);
-            String password = new String(packet, offset, passwordLength, "UTF-8");
-            offset += passwordLength;
-            mPassword = password;
-            if(passwordLength <= 0 || mPassword.trim().isEmpty()) throw new MQTTParseException("No password", Reason.NO_PASSWORD);
+            mPassword = Utils.readString(packet);
+            if(mPassword.trim().isEmpty()) throw new MQTTParseException("No password", Reason.NO_PASSWORD);
         } else mPassword = null;
 
         if(mProtocolName.equals("MQTT") && mProtocolLevel == 4)
@@ -127,61 +110,65 @@ public class Connect extends MQTTPacket {
     }
 
     @Override
-    public byte[] toByte() throws UnsupportedEncodingException {
-        List<Byte> bytes = new ArrayList<>(15);
-
-        // length MSB
-        bytes.add((byte) 0);
-        // length LSB
-        bytes.add((mMQTTVersion == MQTTVersion.MQTT_31) ? (byte) 6 : 4);
-        // protocol name
-        AppendBytes(bytes, getProtocolName().getBytes(CHARSET));
+    protected int getRemainingLength() {
+        // protocol name, level, flags and keep alive
+        int length = 2 + Utils.getUTF8Length(getProtocolName()) + 1 + 1 + 2;
+        length += 2 + Utils.getUTF8Length(getClientID());
+        if(getWillMessage() != null) {
+            length += 2 + Utils.getUTF8Length(getWillMessage().getTopic());
+            length += 2 + Utils.getUTF8Length(getWillMessage().getMessage());
+        }
+        if(getUsername() != null && getUsername().length() > 0)
+            length += 2 + Utils.getUTF8Length(getUsername());
+        if(getPassword() != null && getPassword().length() > 0)
+            length += 2 + Utils.getUTF8Length(getPassword());
+        return length;
+    }
+
+    @Override
+    protected void encodeBody(ByteBuffer buffer) {
+        // protocol name, with length MSB and LSB
+        Utils.writeString(buffer, getProtocolName());
         // protocol version
-        bytes.add((byte) getProtocolLevel());
+        buffer.put((byte) getProtocolLevel());
 
         // connection flags
-        int indexConnectionFlags = bytes.size();
-        bytes.add((byte) 0);
-
+        byte flags = 0;
         if(isCleanSession())
-            bytes.set(indexConnectionFlags, (byte) (bytes.get(indexConnectionFlags) | FLAG_CLEAN_SESSION));
+            flags = (byte) (flags | FLAG_CLEAN_SESSION);
+        if(getWillMessage() != null) {
+            // flag message will, qos will and will retain
+            flags = (byte) (flags | FLAG_WILL);
+            flags = (byte) (flags | (getWillMessage().getQos().ordinal() & 3) << 3);
+            if(getWillMessage().isRetain())
+                flags = (byte) (flags | FLAG_WILL_RETAIN);
+        }
+        if(getUsername() != null && getUsername().length() > 0)
+            flags = (byte) (flags | FLAG_USERNAME);
+        if(getPassword() != null && getPassword().length() > 0)
+            flags = (byte) (flags | FLAG_PASSWORD);
+        buffer.put(flags);
 
         // keep alive
         // MSB and LSB
-        bytes.add((byte)(getKeepAliveSeconds() >> 8));
-        bytes.add((byte)(getKeepAliveSeconds() & 0xFF)); // mask for 8bit.
+        buffer.put((byte)(getKeepAliveSeconds() >> 8));
+        buffer.put((byte)(getKeepAliveSeconds() & 0xFF)); // mask for 8bit.
 
         // payload MQTTClient Identifier, Will Topic, Will Message, User Name, Password
         // 1. MQTTClient ID
-        AppendString(bytes, getClientID());
+        Utils.writeString(buffer, getClientID());
 
         // 2-3. Topic Will and Topic Message
         if(getWillMessage() != null) {
-            AppendString(bytes, getWillMessage().getTopic());
-            AppendString(bytes, getWillMessage().getMessage());
-            // flag message will
-            bytes.set(indexConnectionFlags, (byte) (bytes.get(indexConnectionFlags) | FLAG_WILL));
-            // qos will
-            bytes.set(indexConnectionFlags, (byte) (bytes.get(indexConnectionFlags) | (getWillMessage().getQos().ordinal() & 3) << 3));
-            // will retain
-            if(getWillMessage().isRetain())
-                bytes.set(indexConnectionFlags, (byte) (bytes.get(indexConnectionFlags) | FLAG_WILL_RETAIN));
+            Utils.writeString(buffer, getWillMessage().getTopic());
+            Utils.writeString(buffer, getWillMessage().getMessage());
         }
         // 4. username
-        if(getUsername() != null && getUsername().length() > 0) {
-            // add connection flag
-            bytes.set(indexConnectionFlags, (byte) (bytes.get(indexConnectionFlags) | FLAG_USERNAME));
-            AppendString(bytes, getUsername());
-        }
+        if(getUsername() != null && getUsername().length() > 0)
+            Utils.writeString(buffer, getUsername());
         // 5. Password
-        if(getPassword() != null && getPassword().length() > 0) {
-            // add connection flag
-            bytes.set(indexConnectionFlags, (byte) (bytes.get(indexConnectionFlags) | FLAG_PASSWORD));
-            AppendString(bytes, getPassword());
-        }
-
-        // Join fixed header to variable header and payload
-        return Join(GenerateFixedHeader(getCommand(), bytes.size(), isDup(), getQos().ordinal(), isRetain()), ToPrimitive(bytes));
+        if(getPassword() != null && getPassword().length() > 0)
+            Utils.writeString(buffer, getPassword());
     }
 
     public MQTTVersion getMQTTVersion() {
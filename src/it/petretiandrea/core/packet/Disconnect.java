@@ -4,9 +4,7 @@ import it.petretiandrea.core.Qos;
 import it.petretiandrea.core.exception.MQTTParseException;
 import it.petretiandrea.core.packet.base.MQTTPacket;
 
-import java.io.UnsupportedEncodingException;
-
-import static it.petretiandrea.utils.Utils.GenerateFixedHeader;
+import java.nio.ByteBuffer;
 
 public class Disconnect extends MQTTPacket {
 
@@ -14,12 +12,15 @@ public class Disconnect extends MQTTPacket {
         super(Type.DISCONNECT, false, Qos.QOS_0, false);
     }
 
-    public Disconnect(byte fixedHeader, byte[] body) throws MQTTParseException {
+    public Disconnect(byte fixedHeader, ByteBuffer body) throws MQTTParseException {
         super(fixedHeader);
     }
 
     @Override
-    public byte[] toByte() throws UnsupportedEncodingException {
-        return GenerateFixedHeader(getCommand(), 0, isDup(), getQos().ordinal(), isRetain());
+    protected int getRemainingLength() {
+        return 0;
     }
+
+    @Override
+    protected void encodeBody(ByteBuffer buffer) { }
 }
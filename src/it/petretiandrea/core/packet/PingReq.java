@@ -4,9 +4,7 @@ import it.petretiandrea.core.Qos;
 import it.petretiandrea.core.exception.MQTTParseException;
 import it.petretiandrea.core.packet.base.MQTTPacket;
 
-import java.io.UnsupportedEncodingException;
-
-import static it.petretiandrea.utils.Utils.GenerateFixedHeader;
+import java.nio.ByteBuffer;
 
 public class PingReq extends MQTTPacket {
 
@@ -14,12 +12,20 @@ public class PingReq extends MQTTPacket {
         super(MQTTPacket.Type.PINGREQ, false, Qos.QOS_0, false);
     }
 
-    public PingReq(byte fixedHeader, byte[] body) throws MQTTParseException {
+    public PingReq(byte fixedHeader, ByteBuffer body) throws MQTTParseException {
         super(fixedHeader);
     }
 
     @Override
-    public byte[] toByte() throws UnsupportedEncodingException {
-        return GenerateFixedHeader(getCommand(), 0, isDup(), Qos.QOS_0.ordinal(), isRetain());
+    protected byte getFixedHeader() {
+        return (byte) (getCommand().Value() << 4);
+    }
+
+    @Override
+    protected int getRemainingLength() {
+        return 0;
     }
+
+    @Override
+    protected void encodeBody(ByteBuffer buffer) { }
 }
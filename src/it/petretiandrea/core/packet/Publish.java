@@ -2,13 +2,14 @@ package it.petretiandrea.core.packet;
 
 import it.petretiandrea.core.Message;
 import it.petretiandrea.core.Qos;
+import it.petretiandrea.utils.BufferPool;
+import it.petretiandrea.utils.SharedBuffer;
 import it.petretiandrea.utils.Utils;
 import it.petretiandrea.core.packet.base.MQTTPacket;
 import it.petretiandrea.core.exception.MQTTParseException;
 
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 import static it.petretiandrea.utils.Utils.*;
 
@@ -18,6 +19,20 @@ public class Publish extends MQTTPacket {
     private String mMessageContent;
     private int mMessageID;
 
+    /**
+     * Length in bytes of topic and content encoded, computed at first encode.
+     */
+    private int mTopicLength = -1;
+    private int mContentLength = -1;
+
+    /**
+     * Packet encoded once, shared by the copies with a different message id. Null if not shared.
+     * The head (fixed header, topic and message id) is small and copied for each write with the message id patched,
+     * the payload is written from a read only view of a single buffer, released after the last write.
+     */
+    private byte[] mHead;
+    private SharedBuffer mPayload;
+
     // TODO: Method for transform a publish packet, into Message.
 
     public Publish(Message message) {
@@ -27,25 +42,108 @@ public class Publish extends MQTTPacket {
         mMessageID = message.getMessageID();
     }
 
-    public Publish(byte fixedHeader, byte[] body) throws MQTTParseException, UnsupportedEncodingException {
-        super(fixedHeader);
-        // offset iniziale in base alla lunghezza, ovvero se la lunghezza rimananente è maggiore
-        int offset = 0;
-
-        int topicLen = Utils.getIntFromMSBLSB(body[offset++], body[offset++]); // posizione dopo la RemainingLength, inizia MSB e poi LSB.
-
-        mTopic = new String(body, offset, topicLen, CHARSET); // parse string topic id
+    private Publish(Publish publish, int messageID, byte[] head, SharedBuffer payload) {
+        super(MQTTPacket.Type.PUBLISH, publish.isRetain(), publish.getQos(), publish.isDup());
+        mTopic = publish.mTopic;
+        mMessageContent = publish.mMessageContent;
+        mTopicLength = publish.mTopicLength;
+        mContentLength = publish.mContentLength;
+        mMessageID = messageID;
+        mHead = head;
+        mPayload = payload;
+    }
 
-        offset += topicLen;
+    public Publish(byte fixedHeader, ByteBuffer body) throws MQTTParseException, UnsupportedEncodingException {
+        super(fixedHeader);
+        // il body inizia dopo la RemainingLength: lunghezza del topic MSB e LSB, poi il topic.
+        mTopic = Utils.readString(body); // parse string topic id
 
         // message ID
         if(getQos().ordinal() > Qos.QOS_0.ordinal()) {
             // qos 1 or qos 2, retrive message id.
-            mMessageID = Utils.getIntFromMSBLSB(body[offset++], body[offset++]);
+            mMessageID = Utils.readMSBLSB(body);
         } else mMessageID = 0;
 
-        // message content
-        mMessageContent = new String(body, offset, body.length - offset, CHARSET);
+        // message content, all the remaining bytes of body
+        mMessageContent = Utils.readString(body, body.remaining());
+    }
+
+    /**
+     * Encode the packet once. The packet returned can be copied for each receiver with {@link #withMessageID(int)},
+     * and the copies are written without encode them again.
+     * The caller holds a reference of the payload, and takes one for each receiver with {@link #retain()}:
+     * the payload returns to the pool when all references are released.
+     * @param pool Pool of the payload buffer, null for a buffer not pooled.
+     * @return A shared copy of this packet.
+     */
+    public Publish share(BufferPool pool) {
+        if(mPayload != null)
+            return this;
+        int remainingLength = getRemainingLength();
+        ByteBuffer head = ByteBuffer.allocate(encodedLength() - mContentLength);
+        head.put(getFixedHeader());
+        Utils.writeVarInt(head, remainingLength);
+        Utils.writeString(head, getTopic());
+        if(getQos().ordinal() > Qos.QOS_0.ordinal())
+            head.putShort((short) 0); // patched for each write
+        ByteBuffer payload = (pool != null) ? pool.acquire(mContentLength) : ByteBuffer.allocate(mContentLength);
+        Utils.writeUTF8(payload, getMessageContent());
+        payload.flip();
+        return new Publish(this, mMessageID, head.array(), new SharedBuffer(payload, pool));
+    }
+
+    /**
+     * Encode the packet once, with the payload not pooled. See {@link #share(BufferPool)}.
+     */
+    public Publish share() {
+        return share(null);
+    }
+
+    /**
+     * Copy of this packet with a different message id. The encoded data, if shared, are not copied:
+     * the copy shares the references of this packet, the reference of this packet passes to the copy.
+     */
+    public Publish withMessageID(int messageID) {
+        return new Publish(this, messageID, mHead, mPayload);
+    }
+
+    /**
+     * Take a reference of the shared payload, e.g. for each receiver of a fan out.
+     * @return This packet.
+     */
+    public Publish retain() {
+        if(mPayload != null)
+            mPayload.retain();
+        return this;
+    }
+
+    /**
+     * Release a reference of the shared payload, taken with {@link #retain()} or {@link #retainPayload()}.
+     * Nothing for a packet not shared.
+     */
+    public void release() {
+        if(mPayload != null)
+            mPayload.release();
+    }
+
+    /**
+     * Take a reference of the shared payload for write it, released with {@link #release()} after the write.
+     * @return A read only view of the payload, null if the packet is not shared or the payload is already released.
+     */
+    public ByteBuffer retainPayload() {
+        return (mPayload != null && mPayload.retain()) ? mPayload.view() : null;
+    }
+
+    /**
+     * Write the fixed header, the topic and the message id of a shared packet, the payload follows.
+     * @param buffer Buffer with at least {@link #encodedLength()} minus the payload bytes remaining.
+     */
+    public void encodeHead(ByteBuffer buffer) {
+        buffer.put(mHead);
+        if(getQos().ordinal() > Qos.QOS_0.ordinal()) {
+            buffer.put(buffer.position() - 2, (byte) (getMessageID() >> 8));
+            buffer.put(buffer.position() - 1, (byte) (getMessageID() & 0xFF));
+        }
     }
 
     public Message getMessage() {
@@ -60,30 +158,53 @@ public class Publish extends MQTTPacket {
         return mMessageContent;
     }
 
-    private int getMessageID() {
+    /**
+     * @return The message id, without build the message.
+     */
+    public int getMessageID() {
         return mMessageID;
     }
 
     @Override
-    public byte[] toByte() throws UnsupportedEncodingException {
-        List<Byte> variableAndPayload = new ArrayList<>();
+    protected int getRemainingLength() {
+        if(mTopicLength < 0) {
+            mTopicLength = Utils.getUTF8Length(getTopic());
+            mContentLength = Utils.getUTF8Length(getMessageContent());
+        }
+        // topic, message id for qos 1 and 2, content
+        return 2 + mTopicLength + ((getQos().ordinal() > Qos.QOS_0.ordinal()) ? 2 : 0) + mContentLength;
+    }
+
+    @Override
+    public int encodedLength() {
+        return (mHead != null) ? mHead.length + mContentLength : super.encodedLength();
+    }
+
+    @Override
+    public void encode(ByteBuffer buffer) {
+        ByteBuffer payload = retainPayload();
+        if(payload == null) {
+            super.encode(buffer);
+            return;
+        }
+        encodeHead(buffer);
+        buffer.put(payload);
+        release();
+    }
+
+    @Override
+    protected void encodeBody(ByteBuffer buffer) {
         // append the topic
-        AppendString(variableAndPayload, getTopic());
+        Utils.writeString(buffer, getTopic());
         // for qos 1 and 2 is need the message id
         if(getQos().ordinal() > Qos.QOS_0.ordinal()) {
-            variableAndPayload.add((byte) (getMessageID() >> 8));
-            variableAndPayload.add((byte) (getMessageID() & 0xFF));
+            buffer.put((byte) (getMessageID() >> 8));
+            buffer.put((byte) (getMessageID() & 0xFF));
         }
         // append the content of message.
-        AppendBytes(variableAndPayload, getMessageContent().getBytes(CHARSET));
-        return Join(
-                GenerateFixedHeader(getCommand(), variableAndPayload.size(), isDup(), getQos().ordinal(), isRetain()),
-                ToPrimitive(variableAndPayload)
-        );
+        Utils.writeUTF8(buffer, getMessageContent());
     }
 
-
-
     @Override
     public String toString() {
         return "Publish{" +
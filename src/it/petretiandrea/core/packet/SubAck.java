@@ -5,8 +5,7 @@ import it.petretiandrea.utils.Utils;
 import it.petretiandrea.core.packet.base.MQTTPacket;
 import it.petretiandrea.core.exception.MQTTParseException;
 
-import static it.petretiandrea.utils.Utils.GenerateFixedHeader;
-import static it.petretiandrea.utils.Utils.Join;
+import java.nio.ByteBuffer;
 
 public class SubAck extends MQTTPacket {
 
@@ -28,11 +27,10 @@ public class SubAck extends MQTTPacket {
         mIsFailure = isFailure;
     }
 
-    public SubAck(byte fixedHedaer, byte[] body) throws MQTTParseException {
+    public SubAck(byte fixedHedaer, ByteBuffer body) throws MQTTParseException {
         super(fixedHedaer);
-        int offset = 0;
-        mMessageID = Utils.getIntFromMSBLSB(body[offset++], body[offset++]);
-        int grantedQos = (body[offset] & 0xFF);
+        mMessageID = Utils.readMSBLSB(body);
+        int grantedQos = (body.get() & 0xFF);
         if(grantedQos != 0x80)
             mGrantedQos = Qos.fromInteger(grantedQos);
         else
@@ -40,15 +38,15 @@ public class SubAck extends MQTTPacket {
     }
 
     @Override
-    public byte[] toByte() {
-        byte[] variableAndPayload = new byte[3];
-        variableAndPayload[0] = ((byte) (getMessageID() >> 8));
-        variableAndPayload[1] = ((byte) (getMessageID() & 0xFF));
-        variableAndPayload[2] = ((byte) (isFailure() ? 0x80 : (getGrantedQos() == Qos.QOS_0) ? 0x00 : (getGrantedQos() == Qos.QOS_1) ? 0x01 : 0x02));
-        return Join(
-                GenerateFixedHeader(getCommand(), 3, isDup(), getQos().ordinal(), isRetain()),
-                variableAndPayload
-        );
+    protected int getRemainingLength() {
+        return 3;
+    }
+
+    @Override
+    protected void encodeBody(ByteBuffer buffer) {
+        buffer.put((byte) (getMessageID() >> 8));
+        buffer.put((byte) (getMessageID() & 0xFF));
+        buffer.put((byte) (isFailure() ? 0x80 : (getGrantedQos() == Qos.QOS_0) ? 0x00 : (getGrantedQos() == Qos.QOS_1) ? 0x01 : 0x02));
     }
 
     public int getMessageID() {
@@ -2,14 +2,12 @@ package it.petretiandrea.core.packet;
 
 import it.petretiandrea.common.TopicMatcher;
 import it.petretiandrea.core.Qos;
-import it.petretiandrea.utils.MessageIDGenerator;
 import it.petretiandrea.utils.Utils;
 import it.petretiandrea.core.packet.base.MQTTPacket;
 import it.petretiandrea.core.exception.MQTTParseException;
 
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.List;
+import java.nio.ByteBuffer;
 
 import static it.petretiandrea.utils.Utils.*;
 
@@ -19,38 +17,47 @@ public class Subscribe extends MQTTPacket {
     private String mTopic;
     private Qos mQosSub;
 
+    /**
+     * The message id is assigned by the session of client when the packet is sent.
+     */
     public Subscribe(String topic, Qos qosSub) {
+        this(0, topic, qosSub);
+    }
+
+    private Subscribe(int messageID, String topic, Qos qosSub) {
         super(MQTTPacket.Type.SUBSCRIBE, false, Qos.QOS_1, false);
-        mMessageID = MessageIDGenerator.getInstance().nextMessageID();
+        mMessageID = messageID;
         mTopic = topic;
         mQosSub = qosSub;
-
     }
 
-    public Subscribe(byte fixedHeader, byte[] body) throws MQTTParseException, UnsupportedEncodingException {
+    public Subscribe(byte fixedHeader, ByteBuffer body) throws MQTTParseException, UnsupportedEncodingException {
         super(fixedHeader);
-        int offset = 0;
-        mMessageID = Utils.getIntFromMSBLSB(body[offset++], body[offset++]);
-
-        int topicLength = Utils.getIntFromMSBLSB(body[offset++], body[offset++]);
-        mTopic = new String(body, offset, topicLength, "UTF-8");
-        offset += topicLength;
+        mMessageID = Utils.readMSBLSB(body);
+        mTopic = Utils.readString(body);
+        mQosSub = Qos.fromInteger(body.get() & 0x03);
+    }
 
-        mQosSub = Qos.fromInteger(body[offset] & 0x03);
+    @Override
+    protected int getRemainingLength() {
+        return 2 + 2 + Utils.getUTF8Length(getTopic()) + 1;
     }
 
     @Override
-    public byte[] toByte() throws UnsupportedEncodingException {
-        List<Byte> variableAndPayload = new ArrayList<>();
-        variableAndPayload.add((byte) (getMessageID() >> 8));
-        variableAndPayload.add((byte) (getMessageID() & 0xFF));
-        AppendString(variableAndPayload, getTopic());
-        variableAndPayload.add((byte) getQosSub().ordinal());
-        return Join(
-                GenerateFixedHeader(getCommand(), variableAndPayload.size(), isDup(), getQos().ordinal(), isRetain()),
-                ToPrimitive(variableAndPayload)
-        );
+    protected void encodeBody(ByteBuffer buffer) {
+        buffer.put((byte) (getMessageID() >> 8));
+        buffer.put((byte) (getMessageID() & 0xFF));
+        Utils.writeString(buffer, getTopic());
+        buffer.put((byte) getQosSub().ordinal());
+    }
+
+    /**
+     * Copy of this packet with a different message id.
+     */
+    public Subscribe withMessageID(int messageID) {
+        return new Subscribe(messageID, mTopic, mQosSub);
     }
+
     public int getMessageID() {
         return mMessageID;
     }
@@ -1,15 +1,12 @@
 package it.petretiandrea.core.packet;
 
 import it.petretiandrea.core.Qos;
-import it.petretiandrea.utils.MessageIDGenerator;
 import it.petretiandrea.utils.Utils;
 import it.petretiandrea.core.packet.base.MQTTPacket;
 import it.petretiandrea.core.exception.MQTTParseException;
 
 import java.io.UnsupportedEncodingException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Random;
+import java.nio.ByteBuffer;
 
 import static it.petretiandrea.utils.Utils.*;
 
@@ -18,21 +15,31 @@ public class Unsubscribe extends MQTTPacket {
     private int mMessageID;
     private String mTopic;
 
+    /**
+     * The message id is assigned by the session of client when the packet is sent.
+     */
     public Unsubscribe(String topic) {
+        this(0, topic);
+    }
+
+    private Unsubscribe(int messageID, String topic) {
         super(MQTTPacket.Type.UNSUBSCRIBE, false, Qos.QOS_1, false);
-        mMessageID = MessageIDGenerator.getInstance().nextMessageID();
+        mMessageID = messageID;
         mTopic = topic;
     }
 
-
-    public Unsubscribe(byte fixedHeader, byte[] body) throws MQTTParseException, UnsupportedEncodingException {
+    public Unsubscribe(byte fixedHeader, ByteBuffer body) throws MQTTParseException, UnsupportedEncodingException {
         super(fixedHeader);
 
-        int offset = 0;
-        mMessageID = Utils.getIntFromMSBLSB(body[offset++], body[offset++]);
+        mMessageID = Utils.readMSBLSB(body);
+        mTopic = Utils.readString(body);
+    }
 
-        int topicLength = Utils.getIntFromMSBLSB(body[offset++], body[offset++]);
-        mTopic = new String(body, offset, topicLength, "UTF-8");
+    /**
+     * Copy of this packet with a different message id.
+     */
+    public Unsubscribe withMessageID(int messageID) {
+        return new Unsubscribe(messageID, mTopic);
     }
 
     public int getMessageID() {
@@ -44,14 +51,14 @@ public class Unsubscribe extends MQTTPacket {
     }
 
     @Override
-    public byte[] toByte() throws UnsupportedEncodingException {
-        List<Byte> variableAndPayload = new ArrayList<>();
-        variableAndPayload.add((byte) (getMessageID() >> 8));
-        variableAndPayload.add((byte) (getMessageID() & 0xFF));
-        AppendString(variableAndPayload, getTopic());
-        return Join(
-                GenerateFixedHeader(getCommand(), variableAndPayload.size(), isDup(), getQos().ordinal(), isRetain()),
-                ToPrimitive(variableAndPayload)
-        );
+    protected int getRemainingLength() {
+        return 2 + 2 + Utils.getUTF8Length(getTopic());
+    }
+
+    @Override
+    protected void encodeBody(ByteBuffer buffer) {
+        buffer.put((byte) (getMessageID() >> 8));
+        buffer.put((byte) (getMessageID() & 0xFF));
+        Utils.writeString(buffer, getTopic());
     }
 }
@@ -6,6 +6,7 @@ import it.petretiandrea.core.exception.MQTTParseException;
 import it.petretiandrea.utils.Utils;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.EnumSet;
 
 public abstract class MQTTPacket {
@@ -57,7 +58,51 @@ public abstract class MQTTPacket {
         mRetain = (fixedHeader & 0x01) == 1;
     }
 
-    public abstract byte[] toByte() throws UnsupportedEncodingException;
+    /**
+     * Length of variable header and payload, written in the fixed header as remaining length.
+     */
+    protected abstract int getRemainingLength();
+
+    /**
+     * Write the variable header and the payload of packet.
+     * @param buffer Buffer with at least {@link #getRemainingLength()} bytes remaining.
+     */
+    protected abstract void encodeBody(ByteBuffer buffer);
+
+    /**
+     * First byte of fixed header: type of packet and flags.
+     */
+    protected byte getFixedHeader() {
+        return (byte) (((mCommand.Value() & 0x0F) << 4) | ((mDup ? 1 : 0) << 3) | ((mQos.ordinal() & 0x3) << 1) | (mRetain ? 1 : 0));
+    }
+
+    /**
+     * Length of the whole packet encoded, fixed header included.
+     */
+    public int encodedLength() {
+        int remainingLength = getRemainingLength();
+        return 1 + Utils.getVarIntLength(remainingLength) + remainingLength;
+    }
+
+    /**
+     * Write the packet at the position of buffer, without intermediate copies.
+     * @param buffer Buffer with at least {@link #encodedLength()} bytes remaining.
+     * @throws java.nio.BufferOverflowException If the buffer is too small.
+     */
+    public void encode(ByteBuffer buffer) {
+        buffer.put(getFixedHeader());
+        Utils.writeVarInt(buffer, getRemainingLength());
+        encodeBody(buffer);
+    }
+
+    /**
+     * Encode the packet into a new array.
+     */
+    public byte[] toByte() throws UnsupportedEncodingException {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedLength());
+        encode(buffer);
+        return buffer.array();
+    }
 
     public Type getCommand() {
         return mCommand;
@@ -76,6 +121,16 @@ public abstract class MQTTPacket {
     }
 
     public static MQTTPacket parseBody(byte fixedHeader, byte[] body) throws MQTTParseException, UnsupportedEncodingException {
+        return parseBody(fixedHeader, ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Parse the body of a packet, from the position to the limit of buffer.
+     * The strings are decoded in place, the buffer is not retained by the packet.
+     * @param fixedHeader First byte of fixed header.
+     * @param body Body of packet, after the remaining length.
+     */
+    public static MQTTPacket parseBody(byte fixedHeader, ByteBuffer body) throws MQTTParseException, UnsupportedEncodingException {
         switch (Utils.getType(fixedHeader)) {
             case CONNECT:
                 return new Connect(fixedHeader, body);
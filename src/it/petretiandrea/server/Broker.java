@@ -1,9 +1,16 @@
 package it.petretiandrea.server;
 
+import it.petretiandrea.common.network.EventLoop;
+import it.petretiandrea.common.network.EventLoopGroup;
+import it.petretiandrea.common.network.PacketEncoder;
+import it.petretiandrea.common.network.TransportNIO;
+import it.petretiandrea.common.network.TransportNIOTLS;
 import it.petretiandrea.common.network.TransportTLS;
+import it.petretiandrea.common.network.WriteBatch;
 import it.petretiandrea.server.security.SSLContextProvider;
 import it.petretiandrea.server.security.TLSProvider;
 import it.petretiandrea.utils.CustomLogger;
+import it.petretiandrea.utils.ThreadFactories;
 import it.petretiandrea.common.*;
 import it.petretiandrea.common.network.Transport;
 import it.petretiandrea.common.network.TransportTCP;
@@ -21,23 +28,67 @@ import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.security.GeneralSecurityException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class Broker implements MQTTClientCallback {
 
-    private static final Executor EXECUTOR = Executors.newCachedThreadPool();
+    /**
+     * How the connections of the clients are executed.
+     */
+    public enum ConnectionMode {
+        /**
+         * Non blocking connections, multiplexed by a fixed set of event loops.
+         */
+        EVENT_LOOP,
+        /**
+         * Platform threads for each connection, a reader and a writer.
+         */
+        PLATFORM_THREAD,
+        /**
+         * Virtual threads for each connection, a reader and a writer (requires Java 21).
+         */
+        VIRTUAL_THREAD
+    }
 
     private static final int TIMEOUT_CONNECT = (int) (0.5 * 1000);
+
+    /**
+     * Max time for the TLS handshake of a non blocking connection, before the Connect timeout.
+     */
+    private static final int TIMEOUT_TLS_HANDSHAKE = 5 * 1000;
+
+    /**
+     * Pending connections queue, large enough for the reconnection of many clients at the same time.
+     */
+    private static final int ACCEPT_BACKLOG = 4096;
+
+    /**
+     * Default number of event loops, that multiplex the connections of the clients.
+     */
+    public static final int DEFAULT_EVENT_LOOPS = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * Default number of retained messages enqueued at a time for a new subscription.
+     */
+    public static final int DEFAULT_RETAINED_PAGE_SIZE = 256;
+
+    /**
+     * Default min number of subscribers of a message for deliver it in parallel.
+     */
+    public static final int DEFAULT_PARALLEL_FAN_OUT_THRESHOLD = 4096;
     /**
      * Clients connected
      */
@@ -54,9 +105,9 @@ public class Broker implements MQTTClientCallback {
     private SessionManager mSessionManager;
 
     /**
-     * Retain Messages
+     * Retain Messages, one for each topic
      */
-    private List<Message> mRetainMessages;
+    private final RetainedMessageStore mRetainMessages;
 
     /**
      * Manager for auth clients.
@@ -66,37 +117,202 @@ public class Broker implements MQTTClientCallback {
     private final Object mLock = new Object();
 
     private ServerSocket mServerSocket;
+
+    /**
+     * Server channel, used when the connections are handled by the event loops.
+     */
+    private ServerSocketChannel mServerChannel;
+
+    /**
+     * Event loops (workers) for the non blocking connections.
+     */
+    private EventLoopGroup mEventLoopGroup;
+    private final int mEventLoops;
+
+    private final ConnectionMode mConnectionMode;
+
+    /**
+     * Factory for the threads of connections, null if the handshake and the loop run on the accept thread.
+     */
+    private ThreadFactory mConnectionThreads;
+
     private volatile boolean mRunning;
 
     private Thread mBrokerThread;
 
     private SSLContextProvider mSSLContextProvider;
 
+    /**
+     * Context of the TLS connections, null if the broker listen on plain TCP.
+     */
+    private SSLContext mSSLContext;
+
+    /**
+     * Write coalescing of the connections, null if each packet is written alone.
+     */
+    private volatile WriteBatch mWriteBatch;
+
+    /**
+     * Retained messages enqueued at a time for a subscription, and the depth of the outbound queue
+     * of subscriber for enqueue the next page.
+     */
+    private volatile int mRetainedPageSize = DEFAULT_RETAINED_PAGE_SIZE;
+    private volatile int mRetainedLowWatermark = DEFAULT_RETAINED_PAGE_SIZE / 4;
+
+    /**
+     * Executes the routing of the messages published, on the thread that receives them by default.
+     */
+    private volatile MessageRouter mRouter = this::route;
+
     public Broker() {
         this(new AccountManager());
     }
 
     public Broker(AccountManager accountManager) {
+        this(accountManager, ConnectionMode.EVENT_LOOP);
+    }
+
+    public Broker(AccountManager accountManager, ConnectionMode connectionMode) {
+        this(accountManager, connectionMode, DEFAULT_EVENT_LOOPS);
+    }
+
+    /**
+     * @param accountManager Manager for auth clients.
+     * @param connectionMode How the connections are executed.
+     * @param eventLoops Number of event loops for the non blocking connections.
+     */
+    public Broker(AccountManager accountManager, ConnectionMode connectionMode, int eventLoops) {
         mAccountManager = accountManager;
+        mConnectionMode = connectionMode;
+        mEventLoops = eventLoops;
+        mConnectionThreads = (connectionMode == ConnectionMode.VIRTUAL_THREAD) ? ThreadFactories.virtual("broker-connection") : null;
         mSessionManager = new SessionManager();
         mSubscribeManager = new SubscribeManager();
-        mClients = new HashMap<>();
-        mRetainMessages = new ArrayList<>();
+        mClients = new ConcurrentHashMap<>();
+        // with a single core the parallel fan out only adds the cost of tasks
+        if(ForkJoinPool.getCommonPoolParallelism() > 1)
+            mSubscribeManager.setParallelFanOut(ForkJoinPool.commonPool(), DEFAULT_PARALLEL_FAN_OUT_THRESHOLD);
+        mSubscribeManager.setInflightCounter(clientID -> {
+            ClientBroker clientBroker = mClients.get(clientID);
+            return (clientBroker != null && clientBroker.isConnected()) ? clientBroker.getClientSession().getSendedNotAck().size() : -1;
+        });
+        mRetainMessages = new RetainedMessageStore();
         mServerSocket = null;
     }
 
+    /**
+     * Enable the write coalescing for the connections accepted after this call: the packets pending
+     * for a client, e.g. the acks of a burst of publish, are written together with a single write.
+     * @param writeBatch Limits of a batch, shared by all connections with its counters. Null for disable it.
+     */
+    public void setWriteBatch(WriteBatch writeBatch) {
+        mWriteBatch = writeBatch;
+    }
+
+    public WriteBatch getWriteBatch() {
+        return mWriteBatch;
+    }
+
+    /**
+     * Set how the retained messages are delivered to a new subscription: a page at a time,
+     * the next page is enqueued when the outbound queue of subscriber drains to the low watermark.
+     * @param pageSize Max number of retained messages enqueued at a time.
+     * @param lowWatermark Max number of packets in the outbound queue of subscriber for enqueue the next page.
+     */
+    public void setRetainedPaging(int pageSize, int lowWatermark) {
+        if(pageSize <= 0 || lowWatermark < 0)
+            throw new IllegalArgumentException("Invalid retained paging: " + pageSize + ", " + lowWatermark);
+        mRetainedPageSize = pageSize;
+        mRetainedLowWatermark = lowWatermark;
+    }
+
+    /**
+     * Route the messages published on a fixed number of shards, each one with a single thread:
+     * the messages of a topic are routed by the same shard, in order, and the different topics in parallel.
+     * The thread that receives a publish only enqueues it.
+     * Call it before listen, the messages not yet routed by the previous router are discarded.
+     * @param shards Number of shards, e.g. the number of cores. 0 for route on the thread that receives the publish.
+     */
+    public void setRoutingShards(int shards) {
+        setRoutingShards(shards, ShardedRouter.DEFAULT_RING_SIZE, RingBuffer.WaitStrategy.BLOCKING);
+    }
+
+    /**
+     * Route the messages published on a fixed number of shards, see {@link #setRoutingShards(int)}.
+     * @param ringSize Number of messages in the ring buffer of each shard, when full the connections wait.
+     * @param waitStrategy How the threads wait on the rings.
+     */
+    public void setRoutingShards(int shards, int ringSize, RingBuffer.WaitStrategy waitStrategy) {
+        MessageRouter previous = mRouter;
+        mRouter = (shards > 0) ? new ShardedRouter(shards, ringSize, waitStrategy, this::route) : this::route;
+        previous.shutdown();
+    }
+
+    /**
+     * @return Number of messages received and not yet routed, 0 if they are routed on the thread that receives them.
+     */
+    public int getRoutingDepth() {
+        MessageRouter router = mRouter;
+        return (router instanceof ShardedRouter) ? ((ShardedRouter) router).getPending() : 0;
+    }
+
+    /**
+     * @return Number of packets routed to the connected clients and not yet written on their sockets.
+     */
+    public int getDeliveryDepth() {
+        int depth = 0;
+        for(ClientBroker clientBroker : mClients.values())
+            if(clientBroker.isConnected())
+                depth += clientBroker.getOutboundDepth();
+        return depth;
+    }
+
+    /**
+     * Set the parallel delivery of the messages with many subscribers, e.g. a broadcast to all devices:
+     * the subscribers are split in chunks delivered by the threads of pool, the messages with fewer subscribers
+     * are delivered on the routing thread. By default the common pool is used, if it has more than one thread.
+     * @param pool Pool of the parallel delivery, null for disable it.
+     * @param threshold Min number of subscribers of a message for deliver it in parallel.
+     */
+    public void setParallelFanOut(ForkJoinPool pool, int threshold) {
+        mSubscribeManager.setParallelFanOut(pool, threshold);
+    }
+
+    /**
+     * Set how the messages are delivered to the members of a shared subscription ($share/{group}/{filter}).
+     */
+    public void setSharedStrategy(SubscribeManager.SharedStrategy sharedStrategy) {
+        mSubscribeManager.setSharedStrategy(sharedStrategy);
+    }
+
+    public SubscribeManager.SharedStrategy getSharedStrategy() {
+        return mSubscribeManager.getSharedStrategy();
+    }
+
+    /**
+     * @return The cache of the subscriptions matched by the topics published, with its hit and miss counters.
+     */
+    public MatchCache getMatchCache() {
+        return mSubscribeManager.getMatchCache();
+    }
+
     public void listenTLS(TLSProvider provider, int port) throws IOException {
         if(!mRunning) {
             synchronized (mLock)
             {
                 try {
-                    SSLContext context = SSLContext.getInstance(provider.getProtocol());
-                    context.init(provider.getKeyManagers(), provider.getTrustManagers(), null);
+                    SSLContext context = provider.getSSLContext();
                     mSSLContextProvider = provider;
-                    mServerSocket = context.getServerSocketFactory().createServerSocket(port);
-                    mBrokerThread = new Thread(this::connectionLoop);
-                    mBrokerThread.start();
-                    CustomLogger.LOGGER.info("Server running on: " + port);
+                    mSSLContext = context;
+                    if(mConnectionMode == ConnectionMode.EVENT_LOOP) {
+                        // the TLS is performed by SSLEngine on the event loops
+                        startAcceptor(port);
+                    } else {
+                        mServerSocket = context.getServerSocketFactory().createServerSocket(port, ACCEPT_BACKLOG);
+                        mBrokerThread = new Thread(this::connectionLoop, "broker-acceptor");
+                        mBrokerThread.start();
+                    }
+                    CustomLogger.LOGGER.info("Server running on: " + port + " (TLS), mode: " + mConnectionMode);
                 } catch (NoSuchAlgorithmException | KeyManagementException e) {
                     CustomLogger.LOGGER.severe("Broker: " + e.getMessage());
                 } catch (GeneralSecurityException e) {
@@ -111,14 +327,31 @@ public class Broker implements MQTTClientCallback {
             synchronized (mLock)
             {
                 mSSLContextProvider = null;
-                mServerSocket = new ServerSocket(port);
-                mBrokerThread = new Thread(this::connectionLoop);
-                mBrokerThread.start();
+                mSSLContext = null;
+                if(mConnectionMode != ConnectionMode.EVENT_LOOP) {
+                    mServerSocket = new ServerSocket(port, ACCEPT_BACKLOG);
+                    mBrokerThread = new Thread(this::connectionLoop, "broker-acceptor");
+                    mBrokerThread.start();
+                    CustomLogger.LOGGER.info("Server running on: " + port + ", mode: " + mConnectionMode);
+                    return;
+                }
+                startAcceptor(port);
                 CustomLogger.LOGGER.info("Server running on: " + port);
             }
         }
     }
 
+    /**
+     * Open the server channel and start the acceptor thread and the event loops.
+     */
+    private void startAcceptor(int port) throws IOException {
+        mEventLoopGroup = new EventLoopGroup(mEventLoops, "broker-worker");
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.bind(new InetSocketAddress(port), ACCEPT_BACKLOG);
+        mBrokerThread = new Thread(this::acceptorLoop, "broker-acceptor");
+        mBrokerThread.start();
+    }
+
     /**
      * Wait for end of Broker Thread Life.
      * @throws InterruptedException
@@ -138,57 +371,127 @@ public class Broker implements MQTTClientCallback {
         try {
             while (!mServerSocket.isClosed()) {
                 Transport transport = (mSSLContextProvider != null) ? new TransportTLS(mServerSocket.accept()) : new TransportTCP(mServerSocket.accept());
-                try {
-                    MQTTPacket packet = transport.readPacket(TIMEOUT_CONNECT);
-                    if(packet.getCommand() == MQTTPacket.Type.CONNECT) {
-                        Connect connect = (Connect) packet;
-                        CustomLogger.LOGGER.info("Broker: Client connected request: " + connect);
-                        // 3. Perform authentication.
-                        if(tryValidateUsernamePassword(connect.getUsername(), connect.getPassword())) {
-                            disconnectClient(connect.getClientID());
-
-                            // recover an old session
-                            BrokerSession session = restoreSession(connect);
-                            // restore the subscribed topics
-                            session.getSubscriptions().forEach(subscribe -> mSubscribeManager.subscribe(session.getClientID(), subscribe));
-
-                            ClientBroker clientBroker = new ClientBroker(ConnectionSettings.from(connect, mSSLContextProvider), session,
-                                    transport, new ArrayList<>(session.getPendingPublish()));
-
-                            addConnectedClient(clientBroker);
-
-                            // send connack
-                            transport.writePacket(new ConnAck(false, ConnectionStatus.ACCEPT));
-
-                            clientBroker.setClientCallback(this);
-                            clientBroker.startLoop();
-                            CustomLogger.LOGGER.info("Broker: Client connected: " + connect.getClientID());
-                        } else {
-                            CustomLogger.LOGGER.info("Broker: Client " + connect.getClientID() + " BAD LOGIN!");
-                            transport.writePacket(new ConnAck(false, ConnectionStatus.REFUSED_BAD_LOGIN));
-                        }
-                    }
-                } catch (IOException | MQTTParseException e) {
-                    e.printStackTrace();
-                    if(e instanceof MQTTParseException) {
-                        switch (((MQTTParseException) e).getReason()) {
-                            case INVALID_MQTT_NAME_LEVEL: // versione del protocollo non valida
-                                transport.writePacket(new ConnAck(false, ConnectionStatus.REFUSED_UNACCEPTABLE_PROTOCOL_VERSION));
-                                break;
-                            case INVALID_CLIENT_ID: // client id non valid, es length > 23.
-                                transport.writePacket(new ConnAck(false, ConnectionStatus.REFUSED_IDENTIFIER_REJECTED));
-                                break;
-                        }
-                    }
-                    // close connection
+                transport.setWriteBatch(mWriteBatch);
+                if(mConnectionThreads != null)
+                    mConnectionThreads.newThread(() -> handshake(transport)).start();
+                else
+                    handshake(transport);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Wait the Connect packet of a blocking connection, and start the client loop.
+     */
+    private void handshake(Transport transport) {
+        try {
+            try {
+                MQTTPacket packet = transport.readPacket(TIMEOUT_CONNECT);
+                if(packet == null || !onConnectReceived(transport, packet))
                     transport.close();
-                }
+            } catch (IOException | MQTTParseException e) {
+                e.printStackTrace();
+                refuseConnection(transport, e);
+                // close connection
+                transport.close();
             }
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Acceptor Loop, accept the clients connections and hand them in round robin to the event loops.
+     * The Connect handshake is performed by the event loop of the connection.
+     */
+    private void acceptorLoop() {
+        try {
+            while (mServerChannel.isOpen()) {
+                SocketChannel channel = mServerChannel.accept();
+                EventLoop eventLoop = mEventLoopGroup.next();
+                TransportNIO transport = (mSSLContext != null) ? new TransportNIOTLS(channel, eventLoop, mSSLContext)
+                        : new TransportNIO(channel, eventLoop);
+                transport.setWriteBatch(mWriteBatch);
+                ConnectHandler connectHandler = new ConnectHandler(transport);
+                transport.setPacketListener(connectHandler);
+                eventLoop.schedule(connectHandler::onConnectTimeout,
+                        (mSSLContext != null) ? TIMEOUT_TLS_HANDSHAKE + TIMEOUT_CONNECT : TIMEOUT_CONNECT);
+            }
+        } catch (IOException e) {
+            if(mServerChannel.isOpen())
+                e.printStackTrace();
+        }
+    }
+
+    /**
+     * Handle the first packet of a connection, that need to be a Connect.
+     * Perform authentication, restore the session and start the loop of the new client.
+     * @param transport Transport of connection.
+     * @param packet First packet received.
+     * @return True if the client is connected, False if the connection need to be closed.
+     */
+    private boolean onConnectReceived(Transport transport, MQTTPacket packet) throws IOException {
+        if(packet.getCommand() == MQTTPacket.Type.CONNECT) {
+            Connect connect = (Connect) packet;
+            CustomLogger.LOGGER.info("Broker: Client connected request: " + connect);
+            // 3. Perform authentication.
+            if(tryValidateUsernamePassword(connect.getUsername(), connect.getPassword())) {
+                ClientBroker clientBroker;
+                ClientBroker replaced;
+                // the takeover, the restore and the add are atomic with respect to the close of the old connection
+                synchronized (mClients) {
+                    replaced = disconnectClient(connect.getClientID());
+
+                    // recover an old session
+                    BrokerSession session = restoreSession(connect);
+                    // restore the subscribed topics, the subscriptions of an old session are discarded with a clean session
+                    mSubscribeManager.unsubscribeAll(session.getClientID());
+                    session.getSubscriptions().forEach(subscribe -> mSubscribeManager.subscribe(session.getClientID(), subscribe));
+
+                    clientBroker = new ClientBroker(ConnectionSettings.from(connect, mSSLContextProvider), session,
+                            transport, new ArrayList<>(session.getPendingPublish()));
+
+                    addConnectedClient(clientBroker);
+                }
+                if(replaced != null)
+                    sendWillMessage(replaced);
+
+                // send connack
+                transport.writePacket(new ConnAck(false, ConnectionStatus.ACCEPT));
+
+                clientBroker.setClientCallback(this);
+                if(mConnectionThreads != null)
+                    clientBroker.startLoop(mConnectionThreads);
+                else
+                    clientBroker.startLoop();
+                CustomLogger.LOGGER.info("Broker: Client connected: " + connect.getClientID());
+                return true;
+            } else {
+                CustomLogger.LOGGER.info("Broker: Client " + connect.getClientID() + " BAD LOGIN!");
+                transport.writePacket(new ConnAck(false, ConnectionStatus.REFUSED_BAD_LOGIN));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Send the ConnAck for a connection refused because of an invalid Connect.
+     */
+    private void refuseConnection(Transport transport, Exception e) throws IOException {
+        if(e instanceof MQTTParseException) {
+            switch (((MQTTParseException) e).getReason()) {
+                case INVALID_MQTT_NAME_LEVEL: // versione del protocollo non valida
+                    transport.writePacket(new ConnAck(false, ConnectionStatus.REFUSED_UNACCEPTABLE_PROTOCOL_VERSION));
+                    break;
+                case INVALID_CLIENT_ID: // client id non valid, es length > 23.
+                    transport.writePacket(new ConnAck(false, ConnectionStatus.REFUSED_IDENTIFIER_REJECTED));
+                    break;
+            }
+        }
+    }
+
     /**
      * Check if need to authentication and try to authenticate the client from it Connect request
      * @return True if authorized or there is no authorization request, False otherwise.
@@ -212,17 +515,20 @@ public class Broker implements MQTTClientCallback {
     }
 
     /**
-     * Method for closeConnection a MQTTClient, auto clean the session if needed, and remove the client from list of connected.
+     * Take over the connection of a client with the same client ID: the old client is removed from the list of
+     * connected and its session is saved or cleaned now, so the session restored for the new connection is
+     * the one of the old client. The connection of old client is closed without wait for it, the close
+     * can run on another event loop, and its close callback finds the client already removed.
+     * Called with the lock of clients.
      * @param clientID The ID of MQTTClient
+     * @return The client disconnected, null if not connected.
      */
-    private void disconnectClient(String clientID) {
-        synchronized (mClients) {
-            if(mClients.containsKey(clientID)) {
-                // another client with same client id
-                // wait for disconnection.
-                mClients.get(clientID).disconnect().join();
-            }
-        }
+    private ClientBroker disconnectClient(String clientID) {
+        ClientBroker clientBroker = mClients.get(clientID);
+        if(clientBroker == null || !removeConnectedClient(clientBroker))
+            return null;
+        clientBroker.disconnect();
+        return clientBroker;
     }
 
     /**
@@ -245,30 +551,47 @@ public class Broker implements MQTTClientCallback {
     }
 
     private void closeClientConnection(Client client) {
-        if(mClients.containsKey(client.getClientSession().getClientID())) {
-            /* Remove the client from the list */
-            mClients.remove(client.getClientSession().getClientID());
+        boolean removed;
+        synchronized (mClients) {
+            removed = removeConnectedClient(client);
+        }
+        if(removed)
+            sendWillMessage(client);
+    }
 
-            /* Clean session if the flag clean session is true */
-            if(client.getClientSession().isCleanSession())
-                mSessionManager.cleanSession(client.getClientSession().getClientID());
-            else /* Save Sessions */
-                mSessionManager.addSession(client.getClientSession(), mSubscribeManager.getSubscriptions(client.getClientSession().getClientID()));
+    /**
+     * Remove the client from the list, only if not replaced by a new connection with same client id,
+     * and save or clean its session. Called with the lock of clients.
+     * @return True if removed, False if already removed or replaced.
+     */
+    private boolean removeConnectedClient(Client client) {
+        if(!mClients.remove(client.getClientSession().getClientID(), client))
+            return false;
 
-            // remove all subscriptions
+        /* Clean session if the flag clean session is true, and remove all subscriptions */
+        if(client.getClientSession().isCleanSession()) {
+            mSessionManager.cleanSession(client.getClientSession().getClientID());
             mSubscribeManager.unsubscribeAll(client.getClientSession().getClientID());
+        } else /* Save Sessions, the subscriptions are kept for the messages received while offline */
+            mSessionManager.addSession(client.getClientSession(), mSubscribeManager.getSubscriptions(client.getClientSession().getClientID()));
+        return true;
+    }
 
-            // send if present the will message to other clients
-            // uso on messageArrived che gestisce automanticamente gi il rendirizzamento nella sessione e il retain
-            if(client.getWillMessage() != null)
-                onMessageArrived(client, client.getWillMessage());
-        }
+    private void sendWillMessage(Client client) {
+        // send if present the will message to other clients
+        // uso on messageArrived che gestisce automanticamente gi il rendirizzamento nella sessione e il retain
+        if(client.getWillMessage() != null)
+            onMessageArrived(client, client.getWillMessage());
     }
 
     /* Single client Callbacks */
 
     @Override
     public void onMessageArrived(Client client, Message message) {
+        // drop in constant time the messages without subscribers, unless they need to be retained
+        if(!message.isRetain() && !mSubscribeManager.hasSubscribers(message.getTopic()))
+            return;
+
         CustomLogger.LOGGER.info(String.format("Broker, Message Received, Client: %s, Topic: %s, Content: %s, Qos: %d, Retain: %b",
                 client.getClientSession().getClientID(),
                 message.getTopic(),
@@ -276,37 +599,68 @@ public class Broker implements MQTTClientCallback {
                 message.getQos().ordinal(),
                 message.isRetain()));
 
-        Qos receivedQos = message.getQos();
-
-        // 1. publish message for all active connections
-        mClients.values().stream()
-                .filter(Client::isConnected)
-                .forEach(clientBroker -> mSubscribeManager.getSubscriptions(clientBroker.getClientSession().getClientID()).stream()
-                        .filter(subscribe -> TopicMatcher.matchTopic(subscribe.getTopic(), message.getTopic()))
-                        .forEach(subscribe -> {
-                            message.setQos(Qos.min(subscribe.getQosSub(), receivedQos));
-                            clientBroker.publish(message);
-                        }));
+        mRouter.route(client.getClientSession().getClientID(), message);
+    }
 
+    /**
+     * Route a message published: forward it to the subscribers and retain it.
+     * @param publisherID Client id of the publisher.
+     */
+    private void route(String publisherID, Message message) {
+        // the publish is encoded once for each effective qos, and copied for each receiver with its message id.
+        // The subscribers can be visited in parallel, see setParallelFanOut
+        AtomicReferenceArray<Publish> shared = new AtomicReferenceArray<>(Qos.values().length);
+        // the topic of a retained message is split once, for the subscriptions and the retained store.
+        // The other topics are split only if the match is not cached
+        String[] levels = message.isRetain() ? TopicMatcher.levels(message.getTopic()) : null;
+
+        // 1. publish message for the active connections subscribed, or
+        // 2. put the publish message in the session of clients offline
+        mSubscribeManager.match(message.getTopic(), levels, publisherID, (clientID, subscribe) -> {
+            ClientBroker clientBroker = mClients.get(clientID);
+            if(clientBroker != null && clientBroker.isConnected()) {
+                clientBroker.publish(forward(shared, message, subscribe));
+            } else {
+                BrokerSession brokerSession = mSessionManager.getSession(clientID);
+                if(brokerSession != null)
+                    brokerSession.getPendingPublish().add(forward(shared, message, subscribe));
+            }
+        });
 
-        // 2. recover session from session manager, and put here the publish message
-        mSessionManager.getSessions().forEach(brokerSession ->
-                brokerSession.getSubscriptions().stream()
-                    .filter(subscribe -> TopicMatcher.matchTopic(subscribe.getTopic(), message.getTopic()))
-                    .forEach(subscribe -> {
-                        message.setQos(Qos.min(subscribe.getQosSub(), receivedQos));
-                        brokerSession.getPendingPublish().add(new Publish(message));
-                }));
+        // release the references of the packets encoded, each receiver holds its own until the write
+        for(int i = 0; i < shared.length(); i++) {
+            Publish publish = shared.get(i);
+            if(publish != null)
+                publish.release();
+        }
 
         // 3. save retain message
         if(message.isRetain()) {
-            synchronized (mLock) {
-                if (message.getMessage().trim().isEmpty()) // is empty remove it from retained message
-                    mRetainMessages.removeIf(message1 -> message1.getTopic().equals(message.getTopic()));
-                else
-                    mRetainMessages.add(message); // add it from retained message.
+            if (message.getMessage().trim().isEmpty()) // is empty remove it from retained message
+                mRetainMessages.remove(levels);
+            else
+                mRetainMessages.put(message, levels); // replace the retained message of the topic
+        }
+    }
+
+    /**
+     * Publish packet for a subscriber, with the min qos between message and subscription.
+     * The message is not modified, so it can be forwarded at the same time to many subscribers.
+     * The packet is shared by the subscribers, the message id is assigned by the session of each client at the send.
+     * @param shared Cache of the packets encoded, indexed by qos.
+     * @return The packet, with a reference of its payload for the subscriber, released by the client after the write.
+     */
+    private static Publish forward(AtomicReferenceArray<Publish> shared, Message message, Subscribe subscribe) {
+        Qos qos = Qos.min(subscribe.getQosSub(), message.getQos());
+        Publish publish = shared.get(qos.ordinal());
+        if(publish == null) {
+            publish = PacketEncoder.share(new Publish(new Message(0, message.getTopic(), message.getMessage(), qos, message.isRetain(), false)));
+            if(!shared.compareAndSet(qos.ordinal(), null, publish)) {
+                publish.release();
+                publish = shared.get(qos.ordinal()); // encoded at the same time by another thread of fan out
             }
         }
+        return publish.retain();
     }
 
     @Override
@@ -334,9 +688,22 @@ public class Broker implements MQTTClientCallback {
     @Override
     public void onSubscribeComplete(Client client, Subscribe subscribe) {
         mSubscribeManager.subscribe(client.getClientSession().getClientID(), subscribe);
-        mRetainMessages.stream()
-                .filter(message -> TopicMatcher.matchTopic(subscribe.getTopic(), message.getTopic()))
-                .forEach(client::publish);
+        // the retained messages are not sent for a shared subscription
+        if(TopicMatcher.isSharedSubscription(subscribe.getTopic()))
+            return;
+        deliverRetained(client, mRetainMessages.cursor(subscribe.getTopic()));
+    }
+
+    /**
+     * Enqueue a page of retained messages for a subscriber, and the next page when its outbound queue drains.
+     * The messages not yet enqueued are not kept in memory, only the position of the cursor.
+     */
+    private void deliverRetained(Client client, RetainedMessageStore.Cursor cursor) {
+        if(!client.isConnected())
+            return;
+        cursor.next(mRetainedPageSize, client::publish);
+        if(cursor.hasNext())
+            client.whenDrained(mRetainedLowWatermark, () -> deliverRetained(client, cursor));
     }
 
     @Override
@@ -347,4 +714,59 @@ public class Broker implements MQTTClientCallback {
         mSubscribeManager.unsubscribe(client.getClientSession().getClientID(), unsubscribe);
     }
 
+    /**
+     * Listener of a new non blocking connection, wait the Connect packet on the event loop.
+     */
+    private class ConnectHandler implements TransportNIO.PacketListener {
+
+        private final TransportNIO mTransport;
+        private boolean mHandled;
+
+        ConnectHandler(TransportNIO transport) {
+            mTransport = transport;
+            mHandled = false;
+        }
+
+        @Override
+        public void onPacketReceived(MQTTPacket packet) {
+            if(mHandled)
+                return;
+            mHandled = true;
+            try {
+                if(!onConnectReceived(mTransport, packet))
+                    mTransport.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+                close();
+            }
+        }
+
+        @Override
+        public void onTick(long now) { }
+
+        @Override
+        public void onTransportClosed(Throwable cause) {
+            if(!mHandled && cause instanceof MQTTParseException) {
+                mHandled = true;
+                try {
+                    refuseConnection(mTransport, (MQTTParseException) cause);
+                } catch (IOException ignored) { }
+            }
+            mHandled = true;
+        }
+
+        void onConnectTimeout() {
+            if(!mHandled) {
+                mHandled = true;
+                CustomLogger.LOGGER.info("Broker: Connect timeout expired");
+                close();
+            }
+        }
+
+        private void close() {
+            try {
+                mTransport.close();
+            } catch (IOException ignored) { }
+        }
+    }
 }
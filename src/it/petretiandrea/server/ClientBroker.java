@@ -63,9 +63,10 @@ public class ClientBroker extends Client {
                     subscribe.getTopic(),
                     subscribe.getQosSub().ordinal()));
 
-            send(new SubAck(subscribe.getMessageID(), subscribe.getQosSub()));
+            // subscribed before the ack, a client that receives the ack finds the subscription in its session
             if(getClientCallback() != null)
                 getClientCallback().onSubscribeComplete(this, subscribe);
+            send(new SubAck(subscribe.getMessageID(), subscribe.getQosSub()));
         } else {
             CustomLogger.LOGGER.severe(String.format("Broker, Invalid subscrive, Client %s",
                     getClientSession().getClientID()));
@@ -81,9 +82,9 @@ public class ClientBroker extends Client {
 
     @Override
     public void onUnsubscribeReceive(Unsubscribe unsubscribe) throws MQTTProtocolException {
-        send(new UnsubAck(unsubscribe.getMessageID()));
         if(getClientCallback() != null)
             getClientCallback().onUnsubscribeComplete(this, unsubscribe);
+        send(new UnsubAck(unsubscribe.getMessageID()));
     }
 
     @Override
@@ -0,0 +1,22 @@
+package it.petretiandrea.server;
+
+import it.petretiandrea.core.Message;
+
+/**
+ * Executes the routing of the messages published: the match of subscriptions, the forward to subscribers
+ * and the retain. By default the broker routes a message on the thread that receives it.
+ */
+public interface MessageRouter {
+
+    /**
+     * Route a message published.
+     * @param publisherID Client id of the publisher.
+     * @param message Message published.
+     */
+    void route(String publisherID, Message message);
+
+    /**
+     * Stop the threads of router, if any. The messages not yet routed are discarded.
+     */
+    default void shutdown() { }
+}
@@ -0,0 +1,137 @@
+package it.petretiandrea.server;
+
+import it.petretiandrea.common.RingBuffer;
+import it.petretiandrea.core.Message;
+import it.petretiandrea.utils.CustomLogger;
+import it.petretiandrea.utils.ThreadFactories;
+
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Router with a fixed number of shards, each one with a single thread that routes the messages of its topics.
+ * A topic is always routed by the same shard, in the order of arrival, so the order of the messages
+ * of a topic is kept. The threads that receive the publish only enqueue it in the ring buffer of the shard,
+ * preallocated, and the routing of different topics runs in parallel on the shards.
+ * When the ring of a shard is full, the threads that receive the publish wait: the routing slows down the reads
+ * of the connections, instead of queue the messages without limits.
+ */
+public class ShardedRouter implements MessageRouter {
+
+    /**
+     * Default number of messages in the ring of each shard.
+     */
+    public static final int DEFAULT_RING_SIZE = 4096;
+
+    private static final int MAX_BATCH = 256;
+
+    private static final ThreadFactory ROUTER_THREADS = ThreadFactories.platform("broker-router");
+
+    /**
+     * Slot of the ring, reused for each message.
+     */
+    private static class Event {
+        private String mPublisherID;
+        private Message mMessage;
+    }
+
+    private static final RingBuffer.Translator<Event, String, Message> TRANSLATOR = (event, publisherID, message) -> {
+        event.mPublisherID = publisherID;
+        event.mMessage = message;
+    };
+
+    private class Shard {
+        private final RingBuffer<Event> mRing;
+        private final Thread mThread;
+
+        private Shard(int ringSize, RingBuffer.WaitStrategy waitStrategy) {
+            mRing = new RingBuffer<>(ringSize, Event::new, waitStrategy);
+            mThread = ROUTER_THREADS.newThread(() -> mRing.consume(this::onEvent, MAX_BATCH, () -> mRunning));
+            mThread.setDaemon(true);
+        }
+
+        private void onEvent(Event event, boolean endOfBatch) {
+            try {
+                mTarget.route(event.mPublisherID, event.mMessage);
+            } catch (RuntimeException e) {
+                CustomLogger.LOGGER.severe("ShardedRouter: " + e);
+            } finally {
+                // the slot does not keep the message until it's reused
+                event.mPublisherID = null;
+                event.mMessage = null;
+            }
+        }
+    }
+
+    private final MessageRouter mTarget;
+    private final Shard[] mShards;
+    private volatile boolean mRunning;
+
+    /**
+     * @param shards Number of shards, e.g. the number of cores.
+     * @param target Router executed by the threads of shards.
+     */
+    public ShardedRouter(int shards, MessageRouter target) {
+        this(shards, DEFAULT_RING_SIZE, RingBuffer.WaitStrategy.BLOCKING, target);
+    }
+
+    /**
+     * @param shards Number of shards, e.g. the number of cores.
+     * @param ringSize Number of messages in the ring of each shard.
+     * @param waitStrategy How the threads of shards wait the messages, and the producers wait a full ring.
+     * @param target Router executed by the threads of shards.
+     */
+    public ShardedRouter(int shards, int ringSize, RingBuffer.WaitStrategy waitStrategy, MessageRouter target) {
+        if(shards <= 0)
+            throw new IllegalArgumentException("Invalid number of shards: " + shards);
+        mTarget = target;
+        mShards = new Shard[shards];
+        mRunning = true;
+        for(int i = 0; i < shards; i++)
+            mShards[i] = new Shard(ringSize, waitStrategy);
+        for(Shard shard : mShards)
+            shard.mThread.start();
+    }
+
+    @Override
+    public void route(String publisherID, Message message) {
+        if(mRunning)
+            shardOf(message.getTopic()).mRing.publish(TRANSLATOR, publisherID, message);
+    }
+
+    private Shard shardOf(String topic) {
+        // spread the bits of hash, the similar topics differ only in the last chars
+        int hash = topic.hashCode() * 0x9E3779B9;
+        return mShards[(hash >>> 1) % mShards.length];
+    }
+
+    /**
+     * @return Number of messages enqueued and not yet routed, of all shards.
+     */
+    public int getPending() {
+        int pending = 0;
+        for(Shard shard : mShards)
+            pending += shard.mRing.depth();
+        return pending;
+    }
+
+    /**
+     * @return Number of messages enqueued and not yet routed, for each shard.
+     */
+    public int[] getDepths() {
+        int[] depths = new int[mShards.length];
+        for(int i = 0; i < mShards.length; i++)
+            depths[i] = mShards[i].mRing.depth();
+        return depths;
+    }
+
+    public int getShards() {
+        return mShards.length;
+    }
+
+    @Override
+    public void shutdown() {
+        mRunning = false;
+        for(Shard shard : mShards)
+            shard.mRing.wakeUp();
+    }
+}
@@ -1,6 +1,7 @@
 package it.petretiandrea.server.security;
 
 import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import java.io.IOException;
 import java.security.GeneralSecurityException;
@@ -13,4 +14,15 @@ public interface SSLContextProvider {
 
     String getProtocol();
 
+    /**
+     * Context for the TLS connections. The same context should be returned at each call,
+     * so the TLS sessions cached by it can be resumed by the next connections.
+     * @return The SSLContext initialized with the key and trust managers.
+     */
+    default SSLContext getSSLContext() throws GeneralSecurityException, IOException {
+        SSLContext context = SSLContext.getInstance(getProtocol());
+        context.init(getKeyManagers(), getTrustManagers(), null);
+        return context;
+    }
+
 }
@@ -2,6 +2,7 @@ package it.petretiandrea.server.security;
 
 import javax.net.ssl.KeyManager;
 import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import java.io.File;
@@ -17,24 +18,74 @@ public class TLSProvider implements SSLContextProvider {
 
     private static final String JKS = "JKS";
 
+    /**
+     * Default max number of TLS sessions cached for the resumption.
+     */
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 20480;
+
+    /**
+     * Default time in seconds, after that a cached TLS session cannot be resumed.
+     */
+    public static final int DEFAULT_SESSION_TIMEOUT = 24 * 60 * 60;
+
     private URL mServerKeyPath;
     private String mServerKeyPassword;
     private URL mCertPath;
     private String mCertPassword;
 
+    private final int mSessionCacheSize;
+    private final int mSessionTimeout;
+
+    /**
+     * Managers and context loaded at first use, then shared by all the connections.
+     */
+    private TrustManager[] mTrustManagers;
+    private KeyManager[] mKeyManagers;
+    private SSLContext mSSLContext;
+
     public TLSProvider(URL serverKeyPath, URL certPath, String passwordKeys) {
         this(serverKeyPath, passwordKeys, certPath, passwordKeys);
     }
 
     public TLSProvider(URL serverKeyPath, String serverKeyPassword, URL certPath, String certPassword) {
+        this(serverKeyPath, serverKeyPassword, certPath, certPassword, DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT);
+    }
+
+    /**
+     * @param sessionCacheSize Max number of TLS sessions cached for the resumption, 0 for no limit.
+     * @param sessionTimeout Time in seconds, after that a cached session cannot be resumed, 0 for no limit.
+     */
+    public TLSProvider(URL serverKeyPath, String serverKeyPassword, URL certPath, String certPassword,
+                       int sessionCacheSize, int sessionTimeout) {
         mServerKeyPath = serverKeyPath;
         mServerKeyPassword = serverKeyPassword;
         mCertPath = certPath;
         mCertPassword = certPassword;
+        mSessionCacheSize = sessionCacheSize;
+        mSessionTimeout = sessionTimeout;
+    }
+
+    /**
+     * The context is created once, with the session cache configured for both server and client side.
+     */
+    @Override
+    public synchronized SSLContext getSSLContext() throws GeneralSecurityException, IOException {
+        if(mSSLContext == null) {
+            SSLContext context = SSLContext.getInstance(getProtocol());
+            context.init(getKeyManagers(), getTrustManagers(), null);
+            context.getServerSessionContext().setSessionCacheSize(mSessionCacheSize);
+            context.getServerSessionContext().setSessionTimeout(mSessionTimeout);
+            context.getClientSessionContext().setSessionCacheSize(mSessionCacheSize);
+            context.getClientSessionContext().setSessionTimeout(mSessionTimeout);
+            mSSLContext = context;
+        }
+        return mSSLContext;
     }
 
     @Override
-    public TrustManager[] getTrustManagers() throws GeneralSecurityException, IOException {
+    public synchronized TrustManager[] getTrustManagers() throws GeneralSecurityException, IOException {
+        if(mTrustManagers != null)
+            return mTrustManagers;
         String algorithm = TrustManagerFactory.getDefaultAlgorithm();
         TrustManagerFactory tmf = TrustManagerFactory.getInstance(algorithm);
 
@@ -49,11 +100,14 @@ public class TLSProvider implements SSLContextProvider {
 
         tmf.init(ks);
 
-        return tmf.getTrustManagers();
+        mTrustManagers = tmf.getTrustManagers();
+        return mTrustManagers;
     }
 
     @Override
-    public KeyManager[] getKeyManagers() throws GeneralSecurityException, IOException {
+    public synchronized KeyManager[] getKeyManagers() throws GeneralSecurityException, IOException {
+        if(mKeyManagers != null)
+            return mKeyManagers;
         String serverKeyStorePasswd = mServerKeyPassword;
         String algorithm = KeyManagerFactory.getDefaultAlgorithm();
         KeyManagerFactory kmf = KeyManagerFactory.getInstance(algorithm);
@@ -68,7 +122,8 @@ public class TLSProvider implements SSLContextProvider {
         }
         kmf.init(ks, serverKeyStorePasswd.toCharArray());
 
-        return kmf.getKeyManagers();
+        mKeyManagers = kmf.getKeyManagers();
+        return mKeyManagers;
     }
 
     @Override
@@ -0,0 +1,110 @@
+package it.petretiandrea.utils;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of byte buffers, grouped in buckets by power of two capacity.
+ * The buffers greater than the max pooled capacity are allocated and released to the garbage collector.
+ * The pool retains free buffers up to a total capacity, the buffers released beyond it go to the garbage collector,
+ * so a burst of large buffers does not stay in memory after the burst.
+ */
+public class BufferPool {
+
+    private static final int MIN_SHIFT = 6;   // 64 bytes
+    private static final int MAX_SHIFT = 20;  // 1 MB
+
+    private final boolean mDirect;
+    private final long mMaxRetainedBytes;
+    private final AtomicLong mRetainedBytes;
+    /**
+     * Stack of free buffers for each bucket, guarded by the bucket itself.
+     * The release does not allocate, unlike a linked queue.
+     */
+    private final ArrayDeque<ByteBuffer>[] mBuckets;
+
+    /**
+     * @param direct True for direct buffers.
+     * @param maxRetainedBytes Max total capacity of the free buffers retained by the pool.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public BufferPool(boolean direct, long maxRetainedBytes) {
+        mDirect = direct;
+        mMaxRetainedBytes = maxRetainedBytes;
+        mRetainedBytes = new AtomicLong(0);
+        mBuckets = new ArrayDeque[MAX_SHIFT - MIN_SHIFT + 1];
+        for(int i = 0; i < mBuckets.length; i++)
+            mBuckets[i] = new ArrayDeque<>();
+    }
+
+    /**
+     * Take a cleared buffer from the pool, or allocate a new one.
+     * @param minCapacity Min capacity of buffer.
+     * @return A buffer with capacity greater or equal than minCapacity.
+     */
+    public ByteBuffer acquire(int minCapacity) {
+        int bucket = bucketOf(minCapacity);
+        if(bucket < 0)
+            return allocate(minCapacity);
+        ByteBuffer buffer;
+        synchronized (mBuckets[bucket]) {
+            buffer = mBuckets[bucket].pollLast();
+        }
+        if(buffer == null)
+            return allocate(1 << (bucket + MIN_SHIFT));
+        mRetainedBytes.addAndGet(-buffer.capacity());
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Give back a buffer to the pool. The buffer must not be used after the release.
+     * @param buffer The buffer acquired from this pool.
+     */
+    public void release(ByteBuffer buffer) {
+        if(buffer == null || buffer.isReadOnly() || buffer.isDirect() != mDirect || Integer.bitCount(buffer.capacity()) != 1)
+            return;
+        int bucket = bucketOf(buffer.capacity());
+        if(bucket < 0)
+            return;
+        if(!reserve(buffer.capacity()))
+            return;
+        synchronized (mBuckets[bucket]) {
+            mBuckets[bucket].addLast(buffer);
+        }
+    }
+
+    /**
+     * @return Total capacity of the free buffers in the pool.
+     */
+    public long getRetainedBytes() {
+        return mRetainedBytes.get();
+    }
+
+    /**
+     * Account a buffer released into the pool.
+     * @return False if the pool is full, the buffer must not be retained.
+     */
+    private boolean reserve(int capacity) {
+        long retained;
+        do {
+            retained = mRetainedBytes.get();
+            if(retained + capacity > mMaxRetainedBytes)
+                return false;
+        } while (!mRetainedBytes.compareAndSet(retained, retained + capacity));
+        return true;
+    }
+
+    private ByteBuffer allocate(int capacity) {
+        return mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * @return Index of bucket for a capacity, -1 if the capacity is not pooled.
+     */
+    private static int bucketOf(int capacity) {
+        int shift = Math.max(MIN_SHIFT, 32 - Integer.numberOfLeadingZeros(Math.max(1, capacity) - 1));
+        return (shift > MAX_SHIFT) ? -1 : shift - MIN_SHIFT;
+    }
+}
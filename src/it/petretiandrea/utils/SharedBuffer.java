@@ -0,0 +1,61 @@
+package it.petretiandrea.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffer read by many owners, with a count of references: it's given back to its pool at the release
+ * of the last reference. The owners read it through read only views, each one with its own position.
+ * A reference not released only loses the reuse of the buffer, it's collected by the garbage collector.
+ */
+public class SharedBuffer {
+
+    private final ByteBuffer mBuffer;
+    private final BufferPool mPool;
+    private final AtomicInteger mReferences;
+
+    /**
+     * @param buffer Data in read mode, not modified after this call.
+     * @param pool Pool of the buffer, null if not pooled.
+     */
+    public SharedBuffer(ByteBuffer buffer, BufferPool pool) {
+        mBuffer = buffer;
+        mPool = pool;
+        mReferences = new AtomicInteger(1);
+    }
+
+    /**
+     * Take a new reference.
+     * @return False if all references are already released, the buffer can not be read.
+     */
+    public boolean retain() {
+        int references;
+        do {
+            references = mReferences.get();
+            if(references <= 0)
+                return false;
+        } while (!mReferences.compareAndSet(references, references + 1));
+        return true;
+    }
+
+    /**
+     * Release a reference, the buffer returns to the pool at the last one.
+     */
+    public void release() {
+        int references;
+        do {
+            references = mReferences.get();
+            if(references <= 0)
+                return;
+        } while (!mReferences.compareAndSet(references, references - 1));
+        if(references == 1 && mPool != null)
+            mPool.release(mBuffer);
+    }
+
+    /**
+     * @return A read only view of the data, valid while the caller holds a reference.
+     */
+    public ByteBuffer view() {
+        return mBuffer.asReadOnlyBuffer();
+    }
+}
@@ -0,0 +1,50 @@
+package it.petretiandrea.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factories for the threads of the connections.
+ */
+public class ThreadFactories {
+
+    /**
+     * Factory of platform threads, named with a prefix and a counter.
+     * @param name Prefix of thread names.
+     */
+    public static ThreadFactory platform(String name) {
+        AtomicInteger counter = new AtomicInteger(0);
+        return runnable -> new Thread(runnable, name + "-" + counter.getAndIncrement());
+    }
+
+    /**
+     * Factory of virtual threads, available from Java 21. The factory is loaded by reflection, so the project
+     * can be compiled with older JDKs. If the virtual threads are not supported, a platform factory is returned.
+     * @param name Prefix of thread names.
+     */
+    public static ThreadFactory virtual(String name) {
+        try {
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = ofVirtual.invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            CustomLogger.LOGGER.warning("Virtual threads not supported by this JVM, fallback to platform threads");
+            return platform(name);
+        }
+    }
+
+    /**
+     * @return True if the JVM support virtual threads.
+     */
+    public static boolean isVirtualSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+}
@@ -4,6 +4,8 @@ import it.petretiandrea.core.packet.base.MQTTPacket;
 import it.petretiandrea.core.exception.MQTTParseException;
 
 import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 
@@ -40,19 +42,142 @@ public class Utils {
         return ((msb & 0xFF) << 8) | (lsb & 0xFF);
     }
 
+    /**
+     * Read an int of 2 bytes, Most Significant and Less Significant Bytes, from the position of buffer.
+     */
+    public static int readMSBLSB(ByteBuffer buffer) {
+        return getIntFromMSBLSB(buffer.get(), buffer.get());
+    }
+
+    /**
+     * Read a string prefixed by msb and lsb length, with UTF-8 codec, from the position of buffer.
+     */
+    public static String readString(ByteBuffer buffer) throws UnsupportedEncodingException {
+        return readString(buffer, readMSBLSB(buffer));
+    }
+
+    /**
+     * Read a string of specific length in bytes, with UTF-8 codec. The bytes are decoded directly from
+     * the array of buffer, without copy.
+     */
+    public static String readString(ByteBuffer buffer, int length) throws UnsupportedEncodingException {
+        if(length > buffer.remaining())
+            throw new BufferUnderflowException();
+        String string;
+        if(buffer.hasArray()) {
+            string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, CHARSET);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] bytes = new byte[length];
+            buffer.get(bytes);
+            string = new String(bytes, CHARSET);
+        }
+        return string;
+    }
+
     /**
      * Generate a Fixed Header for mqtt packet.
      **/
     public static byte[] GenerateFixedHeader(MQTTPacket.Type type, int remainLength, boolean dup, int qos, boolean retain) {
-        byte[] b = new byte[(remainLength > 127) ? 3 : 2];
-        b[0] = (byte) (((type.Value() & 0x0F) << 4) | (((dup ? 1 : 0) & 0x01) << 3) | ((qos & 0x3) << 1) | ((retain ? 1 : 0) & 0x1));
-        if(remainLength > 127) {
-            b[1] = (byte) ((remainLength % 128) | 0x80);
-            b[2] = (byte) (remainLength / 128);
-        } else
-            b[1] = (byte) remainLength;
+        ByteBuffer b = ByteBuffer.allocate(1 + getVarIntLength(remainLength));
+        b.put((byte) (((type.Value() & 0x0F) << 4) | (((dup ? 1 : 0) & 0x01) << 3) | ((qos & 0x3) << 1) | ((retain ? 1 : 0) & 0x1)));
+        writeVarInt(b, remainLength);
+        return b.array();
+    }
 
-        return b;
+    /**
+     * Number of bytes of the remaining length encoding, from 1 to 4.
+     */
+    public static int getVarIntLength(int value) {
+        return (value < 128) ? 1 : (value < 16384) ? 2 : (value < 2097152) ? 3 : 4;
+    }
+
+    /**
+     * Write the remaining length, 7 bits for each byte, the 8th bit is set if more bytes follow.
+     */
+    public static void writeVarInt(ByteBuffer buffer, int value) {
+        do {
+            int digit = value % 128;
+            value /= 128;
+            buffer.put((byte) ((value > 0) ? digit | 0x80 : digit));
+        } while (value > 0);
+    }
+
+    /**
+     * Length in bytes of a string encoded with UTF-8, without encode it.
+     */
+    public static int getUTF8Length(String string) {
+        int length = string.length();
+        int bytes = length;
+        for(int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if(c >= 0x80) {
+                if(c < 0x800) {
+                    bytes += 1;
+                } else if(!Character.isSurrogate(c)) {
+                    bytes += 2;
+                } else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    bytes += 2; // 4 bytes for the pair of chars
+                    i++;
+                } // an unpaired surrogate is encoded as '?'
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Write a string prefixed by msb and lsb of its length in bytes, with UTF-8 codec.
+     */
+    public static void writeString(ByteBuffer buffer, String string) {
+        int length = getUTF8Length(string);
+        buffer.put((byte) (length >> 8));
+        buffer.put((byte) (length & 0xFF));
+        writeUTF8(buffer, string);
+    }
+
+    /**
+     * Encode a string with UTF-8 codec directly into the buffer, without intermediate arrays.
+     * The unpaired surrogates are encoded as '?', like String.getBytes.
+     */
+    public static void writeUTF8(ByteBuffer buffer, String string) {
+        int length = string.length();
+        int i = 0;
+        if(buffer.hasArray()) {
+            // fast path for ASCII chars
+            byte[] array = buffer.array();
+            int offset = buffer.arrayOffset() + buffer.position();
+            int max = Math.min(length, buffer.remaining());
+            while (i < max) {
+                char c = string.charAt(i);
+                if(c >= 0x80)
+                    break;
+                array[offset + i++] = (byte) c;
+            }
+            buffer.position(buffer.position() + i);
+        }
+        for(; i < length; i++) {
+            char c = string.charAt(i);
+            if(c < 0x80) {
+                buffer.put((byte) c);
+            } else if(c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if(Character.isSurrogate(c)) {
+                if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                    int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                    buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                    buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                    buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+                } else {
+                    buffer.put((byte) '?');
+                }
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
     }
 
     /**